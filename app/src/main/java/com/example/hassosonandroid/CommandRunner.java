@@ -0,0 +1,10 @@
+package com.example.hassosonandroid;
+
+
+/**
+ * Starts a shell command the way the app starts QEMU: through su when running as root, through sh otherwise.
+ * Android does not allow executing files from the app's data directory directly.
+ */
+public interface CommandRunner {
+    Process run(String command) throws Exception;
+}
@@ -0,0 +1,268 @@
+package com.example.hassosonandroid;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Resolves the closure of a set of packages, keeping the closure as small as possible.
+ *
+ * For every dependency group ("a | b | c") the resolver first checks whether any alternative is already satisfied
+ * by the selection, directly or through Provides (a versioned dependency only through a versioned Provides).
+ * Only if none is, it compares the satisfiable candidates by how many packages and bytes each would pull in
+ * and takes the cheapest one (the earlier alternative on a tie).
+ * Every such choice is recorded, so it is visible what each decision added to the download.
+ */
+public class DependencyResolver {
+    private final PackageIndex packageDb;
+    private final Map<String, PackageManager.PackageInfo> selected = new LinkedHashMap<>();
+    // Virtual package name -> selected packages providing it
+    private final Map<String, List<PackageManager.PackageInfo>> selectedProviders = new HashMap<>();
+    private final List<String> choices = new ArrayList<>();
+
+
+    public DependencyResolver(PackageIndex packageDb) {
+        this.packageDb = packageDb;
+    }
+
+
+    /**
+     * Resolves the closure of the given packages and checks the result for unsatisfied dependencies.
+     * @return The selected packages by name.
+     */
+    public Map<String, PackageManager.PackageInfo> resolve(List<String> initialPackages, StringBuilder warnings) throws IOException {
+        Deque<PackageManager.PackageInfo> queue = new ArrayDeque<>();
+        for (String pkgName : initialPackages) {
+            PackageManager.PackageInfo info = findBestPackage(pkgName, "");
+            if (info == null) throw new IOException("Initial package not found: " + pkgName);
+            if (select(info)) queue.add(info);
+        }
+
+        while (!queue.isEmpty()) {
+            PackageManager.PackageInfo pkg = queue.poll();
+            for (PackageManager.Dependency dep : pkg.dependencies()) {
+                List<PackageManager.Dependency> group = alternativesOf(dep);
+                if (isSatisfied(group)) continue;
+
+                PackageManager.PackageInfo choice = chooseCheapest(pkg, group);
+                if (choice == null) {
+                    warnings.append("Warning: Could not resolve dependency: ").append(dep.packageName).append("\n");
+                    continue;
+                }
+                if (select(choice)) queue.add(choice);
+            }
+        }
+
+        verifyDependencies(warnings);
+        return selected;
+    }
+
+
+    /**
+     * Returns one line per dependency group where the resolver had to choose between candidates,
+     * with the packages and bytes the chosen candidate added.
+     */
+    public List<String> getChoices() {
+        return Collections.unmodifiableList(choices);
+    }
+
+
+    /**
+     * Returns the total download size of the selection.
+     */
+    public long selectedBytes() {
+        long bytes = 0;
+        for (PackageManager.PackageInfo info : selected.values()) bytes += info.size;
+        return bytes;
+    }
+
+
+    private static List<PackageManager.Dependency> alternativesOf(PackageManager.Dependency dep) {
+        List<PackageManager.Dependency> group = new ArrayList<>(1 + dep.alternatives.size());
+        group.add(dep);
+        group.addAll(dep.alternatives);
+        return group;
+    }
+
+
+    private boolean select(PackageManager.PackageInfo info) {
+        if (selected.containsKey(info.packageName)) return false;
+        selected.put(info.packageName, info);
+        for (String virtual : info.provides) {
+            List<PackageManager.PackageInfo> list = selectedProviders.get(virtual);
+            if (list == null) {
+                list = new ArrayList<>(1);
+                selectedProviders.put(virtual, list);
+            }
+            list.add(info);
+        }
+        return true;
+    }
+
+
+    private boolean isSatisfied(List<PackageManager.Dependency> group) {
+        for (PackageManager.Dependency alternative : group) {
+            if (isSatisfiedBySelection(alternative, selected, selectedProviders)) return true;
+        }
+        return false;
+    }
+
+
+    private static boolean isSatisfiedBySelection(PackageManager.Dependency dep,
+                                                  Map<String, PackageManager.PackageInfo> selection,
+                                                  Map<String, List<PackageManager.PackageInfo>> selectionProviders) {
+        PackageManager.PackageInfo direct = selection.get(dep.packageName);
+        if (direct != null && dep.isVersionSatisfied(direct.version)) return true;
+        List<PackageManager.PackageInfo> provided = selectionProviders.get(dep.packageName);
+        if (provided == null) return false;
+        for (PackageManager.PackageInfo provider : provided) {
+            if (providesSatisfying(provider, dep)) return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Returns whether a package providing the dependency's name satisfies it. A versioned dependency is only satisfied
+     * by a versioned Provides whose version matches, as in dpkg.
+     */
+    private static boolean providesSatisfying(PackageManager.PackageInfo provider, PackageManager.Dependency dep) {
+        if (dep.versionConstraint == null || dep.versionConstraint.isEmpty()) return true;
+        String version = provider.providedVersions.get(dep.packageName);
+        return version != null && dep.isVersionSatisfied(version);
+    }
+
+
+    /**
+     * Returns all packages that can satisfy a single alternative: the package itself and its providers.
+     */
+    private List<PackageManager.PackageInfo> candidatesFor(PackageManager.Dependency dep) throws IOException {
+        List<PackageManager.PackageInfo> candidates = new ArrayList<>();
+        PackageManager.PackageInfo direct = packageDb.get(dep.packageName);
+        if (direct != null && dep.isVersionSatisfied(direct.version)) candidates.add(direct);
+        for (PackageManager.PackageInfo p : packageDb.providersOf(dep.packageName)) {
+            if (p != direct && providesSatisfying(p, dep)) candidates.add(p);
+        }
+        return candidates;
+    }
+
+
+    private PackageManager.PackageInfo findBestPackage(String packageName, String versionConstraint) throws IOException {
+        List<PackageManager.PackageInfo> candidates = candidatesFor(new PackageManager.Dependency(packageName, versionConstraint));
+        return candidates.isEmpty() ? null : candidates.get(0);
+    }
+
+
+    private PackageManager.PackageInfo chooseCheapest(PackageManager.PackageInfo pkg, List<PackageManager.Dependency> group) throws IOException {
+        PackageManager.PackageInfo best = null;
+        long[] bestCost = null;
+        int candidateCount = 0;
+        StringBuilder rejected = new StringBuilder();
+
+        for (PackageManager.Dependency alternative : group) {
+            for (PackageManager.PackageInfo candidate : candidatesFor(alternative)) {
+                candidateCount++;
+                long[] cost = closureCost(candidate);
+                if (best == null || cost[0] < bestCost[0] || (cost[0] == bestCost[0] && cost[1] < bestCost[1])) {
+                    if (best != null) appendCandidate(rejected, best, bestCost);
+                    best = candidate;
+                    bestCost = cost;
+                } else {
+                    appendCandidate(rejected, candidate, cost);
+                }
+            }
+        }
+
+        if (best != null && candidateCount > 1) {
+            choices.add(String.format(Locale.US, "%s: chose %s (+%d packages, +%d KB) over %s",
+                    pkg.packageName, best.packageName, bestCost[0], bestCost[1] / 1024, rejected));
+        }
+        return best;
+    }
+
+
+    private static void appendCandidate(StringBuilder sb, PackageManager.PackageInfo info, long[] cost) {
+        if (sb.length() > 0) sb.append(", ");
+        sb.append(String.format(Locale.US, "%s (+%d packages, +%d KB)", info.packageName, cost[0], cost[1] / 1024));
+    }
+
+
+    /**
+     * Estimates what selecting a package would add to the current selection: the number of new packages
+     * and their download size. Nested choices take the first satisfiable candidate, which keeps the estimate cheap.
+     * @return {packages, bytes}
+     */
+    private long[] closureCost(PackageManager.PackageInfo root) throws IOException {
+        Map<String, PackageManager.PackageInfo> tentative = new HashMap<>();
+        Map<String, List<PackageManager.PackageInfo>> tentativeProviders = new HashMap<>();
+        Deque<PackageManager.PackageInfo> stack = new ArrayDeque<>();
+        long bytes = 0;
+
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            PackageManager.PackageInfo info = stack.pop();
+            if (selected.containsKey(info.packageName) || tentative.containsKey(info.packageName)) continue;
+            tentative.put(info.packageName, info);
+            for (String virtual : info.provides) {
+                List<PackageManager.PackageInfo> list = tentativeProviders.get(virtual);
+                if (list == null) {
+                    list = new ArrayList<>(1);
+                    tentativeProviders.put(virtual, list);
+                }
+                list.add(info);
+            }
+            bytes += info.size;
+
+            for (PackageManager.Dependency dep : info.dependencies()) {
+                List<PackageManager.Dependency> group = alternativesOf(dep);
+                if (isSatisfied(group)) continue;
+                boolean satisfiedTentatively = false;
+                for (PackageManager.Dependency alternative : group) {
+                    if (isSatisfiedBySelection(alternative, tentative, tentativeProviders)) {
+                        satisfiedTentatively = true;
+                        break;
+                    }
+                }
+                if (satisfiedTentatively) continue;
+
+                for (PackageManager.Dependency alternative : group) {
+                    List<PackageManager.PackageInfo> candidates = candidatesFor(alternative);
+                    if (!candidates.isEmpty()) {
+                        stack.push(candidates.get(0));
+                        break;
+                    }
+                }
+            }
+        }
+        return new long[] {tentative.size(), bytes};
+    }
+
+
+    private void verifyDependencies(StringBuilder warnings) {
+        Set<String> reported = new HashSet<>();
+        for (PackageManager.PackageInfo pkg : selected.values()) {
+            Collection<PackageManager.Dependency> dependencies = pkg.dependencies();
+            for (PackageManager.Dependency dep : dependencies) {
+                if (isSatisfied(alternativesOf(dep))) continue;
+                if (!reported.add(pkg.packageName + " " + dep.packageName)) continue;
+                warnings.append("Conflict detected: Package '")
+                        .append(pkg.packageName)
+                        .append("' depends on '")
+                        .append(dep.packageName)
+                        .append(dep.versionConstraint)
+                        .append("', which could not be satisfied by the selected package set.\n");
+            }
+        }
+    }
+}
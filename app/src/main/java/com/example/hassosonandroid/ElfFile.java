@@ -0,0 +1,145 @@
+package com.example.hassosonandroid;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Minimal reader for the parts of an ELF file the dynamic loader uses to find libraries:
+ * the program interpreter (PT_INTERP) and the DT_NEEDED, DT_RPATH and DT_RUNPATH entries of the dynamic section.
+ *
+ * Only the headers and the dynamic section are read, never the whole file. 32/64-bit and both byte orders are handled.
+ */
+public class ElfFile {
+    private static final int PT_LOAD = 1;
+    private static final int PT_DYNAMIC = 2;
+    private static final int PT_INTERP = 3;
+
+    private static final long DT_NULL = 0;
+    private static final long DT_NEEDED = 1;
+    private static final long DT_STRTAB = 5;
+    private static final long DT_RPATH = 15;
+    private static final long DT_RUNPATH = 29;
+
+    public String interpreter;
+    public final List<String> needed = new ArrayList<>();
+    public final List<String> rpath = new ArrayList<>();
+    public final List<String> runpath = new ArrayList<>();
+
+    private FileChannel channel;
+    private ByteOrder order;
+    private boolean is64;
+
+
+    /**
+     * Reads the dynamic linking information of a file.
+     * @return The parsed information, or null if the file is not an ELF file.
+     */
+    public static ElfFile read(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            ElfFile elf = new ElfFile();
+            elf.channel = raf.getChannel();
+            return elf.parse() ? elf : null;
+        }
+    }
+
+
+    private boolean parse() throws IOException {
+        ByteBuffer ident = read(0, 16);
+        if (ident == null || ident.getInt(0) != 0x7f454c46) return false; // "\x7fELF"
+        is64 = ident.get(4) == 2;
+        order = ident.get(5) == 2 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+
+        ByteBuffer header = read(0, is64 ? 64 : 52);
+        if (header == null) return false;
+        long phoff = is64 ? header.getLong(32) : header.getInt(28) & 0xffffffffL;
+        int phentsize = header.getShort(is64 ? 54 : 42) & 0xffff;
+        int phnum = header.getShort(is64 ? 56 : 44) & 0xffff;
+
+        ByteBuffer phdrs = read(phoff, phentsize * phnum);
+        if (phdrs == null) return false;
+
+        List<long[]> loads = new ArrayList<>(); // {vaddr, offset, filesz}
+        long dynOffset = -1;
+        long dynSize = 0;
+        for (int i = 0; i < phnum; i++) {
+            int base = i * phentsize;
+            int type = phdrs.getInt(base);
+            long offset = is64 ? phdrs.getLong(base + 8) : phdrs.getInt(base + 4) & 0xffffffffL;
+            long vaddr = is64 ? phdrs.getLong(base + 16) : phdrs.getInt(base + 8) & 0xffffffffL;
+            long filesz = is64 ? phdrs.getLong(base + 32) : phdrs.getInt(base + 16) & 0xffffffffL;
+            if (type == PT_LOAD) {
+                loads.add(new long[] {vaddr, offset, filesz});
+            } else if (type == PT_DYNAMIC) {
+                dynOffset = offset;
+                dynSize = filesz;
+            } else if (type == PT_INTERP) {
+                interpreter = readString(offset, filesz);
+            }
+        }
+        if (dynOffset < 0) return true; // Statically linked
+
+        ByteBuffer dyn = read(dynOffset, (int) dynSize);
+        if (dyn == null) return true;
+        int entrySize = is64 ? 16 : 8;
+        long strtab = -1;
+        List<long[]> strings = new ArrayList<>(); // {tag, offset into strtab}
+        for (int pos = 0; pos + entrySize <= dyn.limit(); pos += entrySize) {
+            long tag = is64 ? dyn.getLong(pos) : dyn.getInt(pos);
+            long value = is64 ? dyn.getLong(pos + 8) : dyn.getInt(pos + 4) & 0xffffffffL;
+            if (tag == DT_NULL) break;
+            if (tag == DT_STRTAB) strtab = value;
+            else if (tag == DT_NEEDED || tag == DT_RPATH || tag == DT_RUNPATH) strings.add(new long[] {tag, value});
+        }
+        if (strtab < 0) return true;
+
+        // DT_STRTAB is a virtual address; translate it through the segment that contains it.
+        long strtabOffset = -1;
+        for (long[] load : loads) {
+            if (strtab >= load[0] && strtab < load[0] + load[2]) {
+                strtabOffset = strtab - load[0] + load[1];
+                break;
+            }
+        }
+        if (strtabOffset < 0) return true;
+
+        for (long[] entry : strings) {
+            String value = readString(strtabOffset + entry[1], 4096);
+            if (entry[0] == DT_NEEDED) needed.add(value);
+            else Collections.addAll(entry[0] == DT_RPATH ? rpath : runpath, value.split(":"));
+        }
+        return true;
+    }
+
+
+    private ByteBuffer read(long offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > channel.size()) return null;
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(order == null ? ByteOrder.BIG_ENDIAN : order);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) return null;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+
+    /**
+     * Reads a NUL-terminated string of at most maxLength bytes.
+     */
+    private String readString(long offset, long maxLength) throws IOException {
+        int length = (int) Math.min(maxLength, channel.size() - offset);
+        ByteBuffer buffer = read(offset, length);
+        if (buffer == null) return "";
+        int end = 0;
+        while (end < length && buffer.get(end) != 0) end++;
+        return new String(buffer.array(), 0, end, StandardCharsets.UTF_8);
+    }
+}
@@ -6,6 +6,7 @@ import android.util.Log;
 import androidx.annotation.RequiresApi;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.FileOutputStream;
 import java.io.InputStream;
@@ -17,15 +18,28 @@ import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
+import org.tukaani.xz.XZInputStream;
+
 
 public class FileUtils {
     private static final String TAG = "FileUtils";
+    // Where the extracted dynamic loader lives and the only directory it searches, relative to filesDir()
+    public static final String LIBRARY_PATH = "usr/lib/aarch64-linux-gnu";
+    public static final String LOADER_NAME = "ld-linux-aarch64.so.1";
+    public static final String LOADER_PATH = LIBRARY_PATH + "/" + LOADER_NAME;
+    // QEMU's libraries, each under its DT_NEEDED name, so the loader finds them with a single lookup
+    public static final String FLAT_LIBRARY_PATH = "usr/lib/runtime";
+    // Cancelling disconnects the connection, which aborts a blocked read on Android. The timeout is the backstop
+    // for stalled servers on runtimes where it does not.
+    static final int READ_TIMEOUT_MS = 60000;
     private final Context context;
 
 
@@ -67,6 +81,7 @@ public class FileUtils {
 
         URL url = new URL(urlString);
         HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setReadTimeout(READ_TIMEOUT_MS);
 
         if (ignoreTls && (connection instanceof HttpsURLConnection)) {
             HttpsURLConnection httpsConnection = (HttpsURLConnection) connection;
@@ -85,34 +100,105 @@ public class FileUtils {
             httpsConnection.setHostnameVerifier((hostname, session) -> true);
         }
 
-        try {
+        // Written under a temporary name, so an aborted download is never mistaken for a cached file.
+        File partial = new File(file.getPath() + ".part");
+        try (TaskRuntime.Registration registration = TaskRuntime.closeOnCancel(connection::disconnect)) {
             connection.connect();
             if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
                 throw new IOException("Server returned HTTP " + connection.getResponseCode() + " " + connection.getResponseMessage());
             }
-            int fileLength = connection.getContentLength();
+            long fileLength = connection.getContentLengthLong();
             file.getParentFile().mkdirs();
             if (listener != null) listener.onProgressUpdate("Downloading " + file.getName() + "...");
-            try (InputStream input = connection.getInputStream(); OutputStream output = new FileOutputStream(file)) {
-                byte[] data = new byte[8192];
+            try (InputStream input = connection.getInputStream(); OutputStream output = new FileOutputStream(partial)) {
+                byte[] data = new byte[65536];
                 long total = 0;
+                int lastPercent = -1;
                 int count;
                 while ((count = input.read(data)) != -1) {
+                    TaskRuntime.checkCancelled();
                     total += count;
                     output.write(data, 0, count);
-                    if (fileLength > 0 && listener != null) {
-                        listener.onProgressUpdate("Downloading " + file.getName() + ": " + (int) (total * 100 / fileLength) + "%");
+                    int percent = fileLength > 0 ? (int) (total * 100 / fileLength) : -1;
+                    if (percent != lastPercent && listener != null) {
+                        listener.onProgressUpdate("Downloading " + file.getName() + ": " + percent + "%");
+                        lastPercent = percent;
                     }
                 }
             }
+            TaskRuntime.checkCancelled();
+            if (!partial.renameTo(file)) throw new IOException("Could not move " + partial + " to " + file);
+        } catch (IOException e) {
+            partial.delete();
+            throw e;
         } finally {
             connection.disconnect();
         }
     }
 
 
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                TaskRuntime.checkCancelled();
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+
+    /**
+     * Copies a stream in chunks, stopping as soon as the current task is cancelled.
+     * @return The number of bytes copied.
+     */
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[65536];
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            TaskRuntime.checkCancelled();
+            out.write(buffer, 0, read);
+            total += read;
+        }
+        return total;
+    }
+
+
+    public static void decompressXz(File source, File dest, DownloadProgressListener listener) throws IOException {
+        if (listener != null) listener.onProgressUpdate("Unpacking " + source.getName() + "...");
+        try (InputStream in = new XZInputStream(new FileInputStream(source)); OutputStream out = new FileOutputStream(dest)) {
+            copy(in, out);
+        }
+    }
+
+
+    /**
+     * Returns the command prefix that runs a binary from the extracted tree through the extracted dynamic loader.
+     * Uses the flat library directory if the installer created one.
+     */
+    public String loaderPrefix() {
+        File libraries = new File(filesDir(), FLAT_LIBRARY_PATH);
+        if (!new File(libraries, LOADER_NAME).exists()) libraries = new File(filesDir(), LIBRARY_PATH);
+        return new File(libraries, LOADER_NAME).getAbsolutePath() + " --library-path " + libraries.getAbsolutePath() + " ";
+    }
+
+
     public File cacheDir() { return new File(context.getNoBackupFilesDir(), "cache"); }
     public File filesDir() { return new File(context.getNoBackupFilesDir(), "files"); }
+    public File snapshotDir() { return new File(context.getNoBackupFilesDir(), "snapshots"); }
+    public File qmpSocket() { return new File(context.getNoBackupFilesDir(), "qmp.sock"); }
+    public File endpointsFile() { return new File(context.getNoBackupFilesDir(), "endpoints.properties"); }
     public File binDir() { return new File(filesDir(), "usr/bin"); }
     public File libDir() { return new File(filesDir(), "usr/lib"); }
 
@@ -0,0 +1,77 @@
+package com.example.hassosonandroid;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Finds the Home Assistant OS image to download through the GitHub releases API, or any server that answers
+ * the same way (e.g. a local mirror for benchmarks).
+ */
+public class HaosReleases {
+    public static final String DEFAULT_API_URL = "https://api.github.com/repos/home-assistant/operating-system/releases/latest";
+    private static final String IMAGE_PREFIX = "haos_generic-aarch64-";
+    private static final String IMAGE_SUFFIX = ".qcow2.xz";
+
+    private final String apiUrl;
+
+
+    /**
+     * @param apiUrl The URL of the latest release, e.g. {@link #DEFAULT_API_URL}.
+     */
+    public HaosReleases(String apiUrl) {
+        this.apiUrl = apiUrl;
+    }
+
+
+    /**
+     * Returns the download URL of the generic aarch64 qcow2.xz image of the latest release.
+     */
+    public String latestDownloadUrl() throws IOException {
+        URL url = new URL(apiUrl);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setReadTimeout(FileUtils.READ_TIMEOUT_MS);
+        connection.setRequestProperty("Accept", "application/vnd.github.v3+json");
+        try (TaskRuntime.Registration registration = TaskRuntime.closeOnCancel(connection::disconnect)) {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Release lookup failed: HTTP " + connection.getResponseCode() + " from " + apiUrl);
+            }
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            try (InputStream in = connection.getInputStream()) {
+                FileUtils.copy(in, response);
+            }
+            return findImageUrl(new String(response.toByteArray(), StandardCharsets.UTF_8));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+
+    /**
+     * Picks the image asset out of a release as returned by the GitHub API.
+     */
+    private String findImageUrl(String releaseJson) throws IOException {
+        try {
+            JSONObject release = new JSONObject(releaseJson);
+            String targetAssetName = IMAGE_PREFIX + release.getString("tag_name") + IMAGE_SUFFIX;
+            JSONArray assets = release.getJSONArray("assets");
+            for (int i = 0; i < assets.length(); i++) {
+                JSONObject asset = assets.getJSONObject(i);
+                if (asset.getString("name").equals(targetAssetName)) {
+                    return asset.getString("browser_download_url");
+                }
+            }
+            throw new IOException("Asset not found: " + targetAssetName);
+        } catch (JSONException e) {
+            throw new IOException("Unexpected release information from " + apiUrl, e);
+        }
+    }
+}
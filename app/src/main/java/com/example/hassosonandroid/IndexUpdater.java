@@ -0,0 +1,501 @@
+package com.example.hassosonandroid;
+
+import android.util.Log;
+
+import org.tukaani.xz.XZInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * Keeps a local, uncompressed copy of a Debian Packages index up to date.
+ *
+ * The Release file says which SHA256 the current index has. If the cached copy already matches, nothing else is
+ * downloaded. Otherwise the updater reads Packages.diff/Index and applies the chain of ed-style patches (pdiffs)
+ * from the cached state to the current one, which usually costs kilobytes instead of the ~10 MB Packages.xz.
+ * The result is verified against the Release hash. The full Packages.xz is only downloaded if the cache is
+ * missing, too old for the published patch history, or anything about the patches does not check out.
+ */
+public class IndexUpdater {
+    private static final String TAG = "HassOSIndexUpdater";
+
+    private final String distUrl;
+    private final String indexPath;
+    private final File cacheFile;
+    private final FileUtils.DownloadProgressListener listener;
+    private long bytesDownloaded;
+    private String indexHash;
+
+
+    /**
+     * @param distUrl The distribution URL, e.g. https://ftp.debian.org/debian/dists/stable/
+     * @param indexPath The index path relative to the distribution, e.g. main/binary-arm64/Packages
+     * @param cacheFile Where the uncompressed index is kept between updates.
+     */
+    public IndexUpdater(String distUrl, String indexPath, File cacheFile, FileUtils.DownloadProgressListener listener) {
+        this.distUrl = distUrl;
+        this.indexPath = indexPath;
+        this.cacheFile = cacheFile;
+        this.listener = listener;
+    }
+
+
+    /**
+     * Returns the number of bytes fetched from the network by the last {@link #update()}.
+     */
+    public long getBytesDownloaded() {
+        return bytesDownloaded;
+    }
+
+
+    /**
+     * Returns the SHA256 of the index returned by the last {@link #update()}, as listed in the Release file,
+     * or null if the Release file did not list it.
+     */
+    public String getIndexHash() {
+        return indexHash;
+    }
+
+
+    /**
+     * Returns the SHA256 of the index the mirror currently publishes. Only the Release file is fetched.
+     * @return The hash, or null if the Release file does not list the index.
+     */
+    public String currentHash() throws IOException {
+        HashEntry expected = findReleaseEntry();
+        return expected != null ? expected.sha256 : null;
+    }
+
+
+    private static class HashEntry {
+        final String sha256;
+        final long size;
+        final String name;
+
+        HashEntry(String sha256, long size, String name) {
+            this.sha256 = sha256;
+            this.size = size;
+            this.name = name;
+        }
+    }
+
+
+    /**
+     * Brings the cached index up to date.
+     * @return The uncompressed, verified index file.
+     */
+    public File update() throws IOException {
+        bytesDownloaded = 0;
+        HashEntry expected = findReleaseEntry();
+        indexHash = expected != null ? expected.sha256 : null;
+
+        if (cacheFile.exists() && expected != null) {
+            String localHash = FileUtils.sha256(cacheFile);
+            if (localHash.equals(expected.sha256)) {
+                progress("Package index is up to date.");
+                return cacheFile;
+            }
+            try {
+                if (applyDiffs(localHash, expected)) return cacheFile;
+            } catch (IOException e) {
+                Log.w(TAG, "Incremental index update failed, falling back to a full download", e);
+            }
+        }
+
+        downloadFull(expected);
+        return cacheFile;
+    }
+
+
+    private void progress(String message) {
+        if (listener != null) listener.onProgressUpdate(message);
+    }
+
+
+    /**
+     * Reads the SHA256 of the uncompressed index from the Release file.
+     * @return The entry, or null if the Release file does not list it.
+     */
+    private HashEntry findReleaseEntry() throws IOException {
+        byte[] release = fetch(distUrl + "Release");
+        if (release == null) throw new IOException("Failed to get Release file");
+        for (HashEntry entry : parseHashList(new String(release, StandardCharsets.UTF_8), "SHA256")) {
+            if (entry.name.equals(indexPath)) return entry;
+        }
+        Log.w(TAG, "Release file does not list " + indexPath);
+        return null;
+    }
+
+
+    /**
+     * Parses a multi-line hash field as used in Release and Packages.diff/Index files:
+     * <pre>
+     * SHA256:
+     *  &lt;sha256&gt; &lt;size&gt; &lt;name&gt;
+     * </pre>
+     */
+    static List<HashEntry> parseHashList(String text, String field) {
+        List<HashEntry> entries = new ArrayList<>();
+        boolean inField = false;
+        for (String line : text.split("\n")) {
+            if (!line.startsWith(" ")) {
+                inField = line.startsWith(field + ":");
+                continue;
+            }
+            if (!inField) continue;
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length != 3) continue;
+            try {
+                entries.add(new HashEntry(parts[0], Long.parseLong(parts[1]), parts[2]));
+            } catch (NumberFormatException e) {
+                // Not a hash line
+            }
+        }
+        return entries;
+    }
+
+
+    private static String fieldValue(String text, String field) {
+        for (String line : text.split("\n")) {
+            if (line.startsWith(field + ":")) return line.substring(field.length() + 1).trim();
+        }
+        return null;
+    }
+
+
+    /**
+     * Applies the pdiffs that lead from the cached index to the current one.
+     * @return True if the cache was updated and verified, false if the patch history does not cover the cached state.
+     */
+    private boolean applyDiffs(String localHash, HashEntry expected) throws IOException {
+        byte[] indexBytes = fetch(distUrl + indexPath + ".diff/Index");
+        if (indexBytes == null) return false;
+        String index = new String(indexBytes, StandardCharsets.UTF_8);
+
+        String current = fieldValue(index, "SHA256-Current");
+        if (current == null || !current.startsWith(expected.sha256)) {
+            Log.w(TAG, "Packages.diff/Index does not describe the current index");
+            return false;
+        }
+
+        List<HashEntry> history = parseHashList(index, "SHA256-History");
+        List<HashEntry> patches = parseHashList(index, "SHA256-Patches");
+        boolean merged = "merged".equals(fieldValue(index, "X-Patch-Precedence"));
+
+        int start = -1;
+        for (int i = 0; i < history.size(); i++) {
+            if (history.get(i).sha256.equals(localHash)) {
+                start = i;
+                break;
+            }
+        }
+        if (start < 0) return false;
+
+        // Merged patches lead from their history state straight to the current index; otherwise they form a chain.
+        List<HashEntry> chain = new ArrayList<>();
+        for (int i = start; i < history.size(); i++) {
+            HashEntry patch = findByName(patches, history.get(i).name);
+            if (patch == null) return false;
+            chain.add(patch);
+            if (merged) break;
+        }
+
+        File work = new File(cacheFile.getParentFile(), cacheFile.getName() + ".patching");
+        File next = new File(cacheFile.getParentFile(), cacheFile.getName() + ".next");
+        File source = cacheFile;
+        String hash = localHash;
+        try {
+            for (HashEntry patch : chain) {
+                progress("Applying index update " + patch.name + "...");
+                byte[] compressed = fetch(distUrl + indexPath + ".diff/" + patch.name + ".gz");
+                if (compressed == null) throw new IOException("Missing pdiff " + patch.name);
+                byte[] diff = readAll(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+                if (!sha256(diff).equals(patch.sha256)) throw new IOException("Checksum mismatch for pdiff " + patch.name);
+
+                hash = applyEdDiff(source, next, parseEdDiff(diff));
+                if (!next.renameTo(work)) throw new IOException("Could not move patched index into place");
+                source = work;
+            }
+
+            if (!hash.equals(expected.sha256)) throw new IOException("Patched index does not match the Release file");
+            if (!work.renameTo(cacheFile)) throw new IOException("Could not move patched index into place");
+        } finally {
+            // Only left over if a step failed; after success both have been moved into place.
+            next.delete();
+            work.delete();
+        }
+        progress("Package index updated with " + chain.size() + " patch(es), " + bytesDownloaded / 1024 + " KB downloaded.");
+        return true;
+    }
+
+
+    private static HashEntry findByName(List<HashEntry> entries, String name) {
+        for (HashEntry entry : entries) {
+            if (entry.name.equals(name)) return entry;
+        }
+        return null;
+    }
+
+
+    private void downloadFull(HashEntry expected) throws IOException {
+        progress("Downloading package index...");
+        cacheFile.getParentFile().mkdirs();
+        File tmp = new File(cacheFile.getParentFile(), cacheFile.getName() + ".download");
+        String hash;
+        URL url = new URL(distUrl + indexPath + ".xz");
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setReadTimeout(FileUtils.READ_TIMEOUT_MS);
+        try (TaskRuntime.Registration registration = TaskRuntime.closeOnCancel(connection::disconnect)) {
+            connection.connect();
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) throw new IOException("Failed to get Debian Packages file");
+            SetupMetrics.CountingInputStream compressed = new SetupMetrics.CountingInputStream(connection.getInputStream());
+            try (InputStream in = new XZInputStream(compressed)) {
+                hash = writeHashed(in, tmp);
+            }
+            bytesDownloaded += compressed.getCount();
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        } finally {
+            connection.disconnect();
+        }
+
+        if (expected != null && !hash.equals(expected.sha256)) {
+            tmp.delete();
+            throw new IOException("Downloaded package index does not match the Release file");
+        }
+        if (cacheFile.exists()) cacheFile.delete();
+        if (!tmp.renameTo(cacheFile)) throw new IOException("Could not move package index into place");
+    }
+
+
+    /**
+     * One command of an ed script as produced by "diff --ed": "Na", "N[,M]c" or "N[,M]d".
+     */
+    static class EdCommand {
+        int from;
+        int to;
+        char op;
+        List<byte[]> lines = new ArrayList<>();
+    }
+
+
+    static List<EdCommand> parseEdDiff(byte[] diff) throws IOException {
+        List<EdCommand> commands = new ArrayList<>();
+        List<byte[]> lines = splitLines(diff);
+        int i = 0;
+        while (i < lines.size()) {
+            String header = new String(lines.get(i++), StandardCharsets.US_ASCII);
+            if (header.isEmpty() || header.equals("w") || header.equals("q")) continue;
+
+            char op = header.charAt(header.length() - 1);
+            if (op != 'a' && op != 'c' && op != 'd') throw new IOException("Unsupported ed command: " + header);
+            String range = header.substring(0, header.length() - 1);
+            EdCommand command = new EdCommand();
+            command.op = op;
+            try {
+                int comma = range.indexOf(',');
+                command.from = Integer.parseInt(comma < 0 ? range : range.substring(0, comma));
+                command.to = comma < 0 ? command.from : Integer.parseInt(range.substring(comma + 1));
+            } catch (NumberFormatException e) {
+                throw new IOException("Unsupported ed command: " + header);
+            }
+
+            if (op != 'd') {
+                while (true) {
+                    if (i >= lines.size()) throw new IOException("Unterminated ed command: " + header);
+                    byte[] line = lines.get(i++);
+                    if (line.length == 1 && line[0] == '.') break;
+                    command.lines.add(line);
+                }
+            }
+            commands.add(command);
+        }
+        return commands;
+    }
+
+
+    private static List<byte[]> splitLines(byte[] data) {
+        List<byte[]> lines = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == '\n') {
+                byte[] line = new byte[i - start];
+                System.arraycopy(data, start, line, 0, line.length);
+                lines.add(line);
+                start = i + 1;
+            }
+        }
+        if (start < data.length) {
+            byte[] line = new byte[data.length - start];
+            System.arraycopy(data, start, line, 0, line.length);
+            lines.add(line);
+        }
+        return lines;
+    }
+
+
+    /**
+     * Applies an ed script in a single streaming pass from source to dest.
+     * The commands of a "diff --ed" script are listed from the end of the file backwards and never overlap,
+     * so they can be applied in ascending order while copying the untouched lines in between.
+     * @return The SHA256 of the result.
+     */
+    static String applyEdDiff(File source, File dest, List<EdCommand> commands) throws IOException {
+        List<EdCommand> ascending = new ArrayList<>(commands);
+        Collections.sort(ascending, (a, b) -> a.from != b.from ? Integer.compare(a.from, b.from) : Integer.compare(a.to, b.to));
+
+        MessageDigest digest = newSha256();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(source), 65536);
+             OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(dest), 65536), digest)) {
+            LineCopier copier = new LineCopier(in, out);
+            for (EdCommand command : ascending) {
+                // Lines before the command stay as they are. "Na" keeps line N, "c" and "d" replace or drop it.
+                int keepThrough = command.op == 'a' ? command.from : command.from - 1;
+                if (keepThrough < copier.line) throw new IOException("Overlapping ed commands");
+                copier.copyThrough(keepThrough);
+                if (command.op != 'a') copier.skipThrough(command.to);
+                for (byte[] line : command.lines) {
+                    out.write(line);
+                    out.write('\n');
+                }
+            }
+            copier.copyRest();
+        }
+        return hex(digest.digest());
+    }
+
+
+    /**
+     * Copies or skips whole lines of a stream, tracking the number of the last line consumed.
+     */
+    private static class LineCopier {
+        private final InputStream in;
+        private final OutputStream out;
+        int line;
+
+        LineCopier(InputStream in, OutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        void copyThrough(int lastLine) throws IOException {
+            while (line < lastLine) {
+                if (!nextLine(true)) throw new IOException("ed command beyond the end of the index");
+            }
+        }
+
+        void skipThrough(int lastLine) throws IOException {
+            while (line < lastLine) {
+                if (!nextLine(false)) throw new IOException("ed command beyond the end of the index");
+            }
+        }
+
+        void copyRest() throws IOException {
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                TaskRuntime.checkCancelled();
+                out.write(buffer, 0, n);
+            }
+        }
+
+        private boolean nextLine(boolean copy) throws IOException {
+            int b;
+            boolean any = false;
+            while ((b = in.read()) != -1) {
+                any = true;
+                if (copy) out.write(b);
+                if (b == '\n') break;
+            }
+            if (any) line++;
+            return any;
+        }
+    }
+
+
+    private byte[] fetch(String urlString) throws IOException {
+        URL url = new URL(urlString);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setReadTimeout(FileUtils.READ_TIMEOUT_MS);
+        try (TaskRuntime.Registration registration = TaskRuntime.closeOnCancel(connection::disconnect)) {
+            connection.connect();
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_FOUND) return null;
+            if (code != HttpURLConnection.HTTP_OK) throw new IOException("Server returned HTTP " + code + " for " + urlString);
+            try (InputStream in = connection.getInputStream()) {
+                byte[] data = readAll(in);
+                bytesDownloaded += data.length;
+                return data;
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            TaskRuntime.checkCancelled();
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+
+    private static String writeHashed(InputStream in, File dest) throws IOException {
+        MessageDigest digest = newSha256();
+        try (OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(dest), 65536), digest)) {
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                TaskRuntime.checkCancelled();
+                out.write(buffer, 0, n);
+            }
+        }
+        return hex(digest.digest());
+    }
+
+
+    private static MessageDigest newSha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+
+    private static String sha256(byte[] data) throws IOException {
+        return hex(newSha256().digest(data));
+    }
+
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,282 @@
+package com.example.hassosonandroid;
+
+import android.util.Log;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * Keeps a copy of the finished "usr/" tree as one uncompressed tar archive next to "files/", so a reinstall after
+ * "Delete All Data" does not need the network. The archive can also be copied to another device.
+ * The manifest records the SHA256 of the package index the tree was installed from, so a snapshot can be
+ * recognised as outdated once the repository publishes a new index.
+ *
+ * The archive is read and written with large buffers, so restoring is bounded by storage bandwidth.
+ * Regular files, directories and symlinks are stored with their permission bits, and files and directories
+ * with their modification times, so a restored tree matches the installed one. A small JSON manifest
+ * describes the archive. Without a matching manifest the archive is not used.
+ */
+public class InstallSnapshot {
+    private static final String TAG = "HassOSInstallSnapshot";
+    private static final String TREE = "usr";
+    private static final String ARCHIVE_FILE = "usr-tree.tar";
+    private static final String MANIFEST_FILE = "usr-tree.json";
+    private static final int FORMAT_VERSION = 2;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static final PosixFilePermission[] MODE_BITS = {
+            PosixFilePermission.OTHERS_EXECUTE, PosixFilePermission.OTHERS_WRITE, PosixFilePermission.OTHERS_READ,
+            PosixFilePermission.GROUP_EXECUTE, PosixFilePermission.GROUP_WRITE, PosixFilePermission.GROUP_READ,
+            PosixFilePermission.OWNER_EXECUTE, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_READ
+    };
+
+    private final File root;
+    private final File snapshotDir;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private long entries;
+    private long bytes;
+
+
+    /**
+     * @param root The directory containing the "usr/" tree, i.e. filesDir().
+     * @param snapshotDir Where the archive and its manifest are kept.
+     */
+    public InstallSnapshot(File root, File snapshotDir) {
+        this.root = root;
+        this.snapshotDir = snapshotDir;
+    }
+
+
+    public File archive() { return new File(snapshotDir, ARCHIVE_FILE); }
+    public File manifest() { return new File(snapshotDir, MANIFEST_FILE); }
+
+
+    /**
+     * Returns whether a complete archive with a matching manifest exists.
+     */
+    public boolean isAvailable() {
+        try {
+            JSONObject manifest = readManifest();
+            return manifest.getInt("version") == FORMAT_VERSION && manifest.getLong("archiveSize") == archive().length();
+        } catch (IOException | JSONException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Returns the SHA256 of the package index the archived tree was installed from, or null if unknown.
+     */
+    public String indexHash() {
+        try {
+            return readManifest().optString("indexHash", null);
+        } catch (IOException | JSONException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Writes the current "usr/" tree to the archive, replacing an older one.
+     * @param indexHash The SHA256 of the package index the tree was installed from, or null if unknown.
+     * @return The size of the archive in bytes.
+     */
+    public long export(String indexHash) throws IOException {
+        File tree = new File(root, TREE);
+        if (!tree.isDirectory()) throw new IOException("Nothing to export: " + tree + " does not exist");
+        snapshotDir.mkdirs();
+        delete();
+
+        entries = 0;
+        bytes = 0;
+        File tmp = new File(snapshotDir, ARCHIVE_FILE + ".tmp");
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE))) {
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+            addTree(tar, tree.toPath(), TREE);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(archive())) throw new IOException("Could not move " + tmp + " to " + archive());
+
+        try {
+            JSONObject manifest = new JSONObject();
+            manifest.put("version", FORMAT_VERSION);
+            manifest.put("tree", TREE);
+            manifest.put("created", System.currentTimeMillis());
+            manifest.put("entries", entries);
+            manifest.put("bytes", bytes);
+            manifest.put("archiveSize", archive().length());
+            if (indexHash != null) manifest.put("indexHash", indexHash);
+            Files.write(manifest().toPath(), manifest.toString(2).getBytes(StandardCharsets.UTF_8));
+        } catch (JSONException e) {
+            throw new IOException("Could not write snapshot manifest", e);
+        }
+        Log.i(TAG, "Exported " + entries + " entries (" + bytes + " bytes) to " + archive());
+        return archive().length();
+    }
+
+
+    /**
+     * Replaces the "usr/" tree with the contents of the archive.
+     * @return The number of bytes of file data written.
+     */
+    public long restore(FileUtils.DownloadProgressListener listener) throws IOException {
+        long total;
+        try {
+            total = readManifest().getLong("bytes");
+        } catch (JSONException e) {
+            throw new IOException("Invalid snapshot manifest", e);
+        }
+
+        FileUtils.deleteRecursive(new File(root, TREE));
+        root.mkdirs();
+
+        long written = 0;
+        int lastPercent = -1;
+        // Directory modes are applied last, so read-only directories can still be filled.
+        List<TarArchiveEntry> directories = new ArrayList<>();
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(new BufferedInputStream(new FileInputStream(archive()), BUFFER_SIZE))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextEntry()) != null) {
+                Path path = resolve(entry.getName());
+                if (entry.isDirectory()) {
+                    Files.createDirectories(path);
+                    directories.add(entry);
+                } else if (entry.isSymbolicLink()) {
+                    Files.createDirectories(path.getParent());
+                    Files.createSymbolicLink(path, Paths.get(entry.getLinkName()));
+                } else {
+                    Files.createDirectories(path.getParent());
+                    try (OutputStream out = new FileOutputStream(path.toFile())) {
+                        int n;
+                        while ((n = tar.read(buffer)) != -1) {
+                            TaskRuntime.checkCancelled();
+                            out.write(buffer, 0, n);
+                            written += n;
+                        }
+                    }
+                    Files.setPosixFilePermissions(path, permissions(entry.getMode()));
+                    path.toFile().setLastModified(entry.getModTime().getTime());
+
+                    int percent = total > 0 ? (int) (written * 100 / total) : 100;
+                    if (percent != lastPercent) {
+                        listener.onProgressUpdate("Restoring QEMU from snapshot: " + percent + "%");
+                        lastPercent = percent;
+                    }
+                }
+            }
+        }
+        for (TarArchiveEntry directory : directories) {
+            Path path = resolve(directory.getName());
+            path.toFile().setLastModified(directory.getModTime().getTime());
+            Files.setPosixFilePermissions(path, permissions(directory.getMode()));
+        }
+        return written;
+    }
+
+
+    /**
+     * Deletes the archive and its manifest.
+     */
+    public void delete() {
+        manifest().delete();
+        archive().delete();
+    }
+
+
+    private JSONObject readManifest() throws IOException, JSONException {
+        return new JSONObject(new String(Files.readAllBytes(manifest().toPath()), StandardCharsets.UTF_8));
+    }
+
+
+    private void addTree(TarArchiveOutputStream tar, Path path, String name) throws IOException {
+        entries++;
+        if (Files.isSymbolicLink(path)) {
+            TarArchiveEntry entry = new TarArchiveEntry(name, TarConstants.LF_SYMLINK);
+            entry.setLinkName(Files.readSymbolicLink(path).toString());
+            tar.putArchiveEntry(entry);
+            tar.closeArchiveEntry();
+        } else if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            TarArchiveEntry entry = new TarArchiveEntry(name + "/");
+            entry.setMode(TarArchiveEntry.DEFAULT_DIR_MODE & ~0777 | mode(path));
+            entry.setModTime(Files.getLastModifiedTime(path, LinkOption.NOFOLLOW_LINKS).toMillis());
+            tar.putArchiveEntry(entry);
+            tar.closeArchiveEntry();
+            File[] children = path.toFile().listFiles();
+            if (children == null) return;
+            for (File child : children) addTree(tar, child.toPath(), name + "/" + child.getName());
+        } else {
+            TarArchiveEntry entry = new TarArchiveEntry(name);
+            entry.setMode(TarArchiveEntry.DEFAULT_FILE_MODE & ~0777 | mode(path));
+            entry.setModTime(Files.getLastModifiedTime(path).toMillis());
+            entry.setSize(Files.size(path));
+            tar.putArchiveEntry(entry);
+            try (InputStream in = new FileInputStream(path.toFile())) {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    TaskRuntime.checkCancelled();
+                    tar.write(buffer, 0, n);
+                }
+            }
+            tar.closeArchiveEntry();
+            bytes += entry.getSize();
+        }
+    }
+
+
+    /**
+     * Maps an entry name into root, refusing names that would end up outside of the tree.
+     */
+    private Path resolve(String name) throws IOException {
+        Path base = new File(root, TREE).toPath().normalize();
+        Path path = root.toPath().resolve(name).normalize();
+        if (!path.startsWith(base)) throw new IOException("Invalid entry in snapshot: " + name);
+        return path;
+    }
+
+
+    private static int mode(Path path) throws IOException {
+        Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
+        int mode = 0;
+        for (int bit = 0; bit < MODE_BITS.length; bit++) {
+            if (permissions.contains(MODE_BITS[bit])) mode |= 1 << bit;
+        }
+        return mode;
+    }
+
+
+    private static Set<PosixFilePermission> permissions(int mode) {
+        Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+        for (int bit = 0; bit < MODE_BITS.length; bit++) {
+            if ((mode & (1 << bit)) != 0) permissions.add(MODE_BITS[bit]);
+        }
+        return permissions;
+    }
+}
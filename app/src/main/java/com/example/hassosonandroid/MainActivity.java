@@ -10,37 +10,53 @@ import android.widget.Toast;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 
-import org.tukaani.xz.XZInputStream;
-
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.BufferedReader;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import org.json.JSONArray;
-import org.json.JSONObject;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 public class MainActivity extends AppCompatActivity {
 
     private static final String TAG = "HassOS";
     private static final String QEMU_BINARY_PATH = "usr/bin/qemu-system-aarch64";
-    private static final String OS_IMAGE_PATH = "haos.qcow2";
+    private static final String OS_IMAGE_PATH = VmImageManager.OVERLAY_PATH;
+    private static final String QEMU_DATA_PATH = "usr/share/qemu";
+    private static final String AAVMF_DATA_PATH = "usr/share/AAVMF";
     private static final String AAVMF_CODE_PATH = "usr/share/AAVMF/AAVMF_CODE.no-secboot.fd";
     private static final String AAVMF_VARS_TEMPLATE_PATH = "usr/share/AAVMF/AAVMF_VARS.fd";
     private static final String AAVMF_VARS_PATH = "AAVMF_VARS.writable.fd";
+    private static final String SERIAL_LOG_PATH = "serial.log";
+    private static final long QMP_CONNECT_TIMEOUT_MS = 30000;
+    private static final int HOME_ASSISTANT_PORT = 8123;
+    private static final int TASK_THREADS = 4;
 
     private TextView statusTextView;
-    private Button downloadButton, startButton, clearCacheButton, deleteAllButton, terminateButton;
-    private CheckBox runAsRootCheckBox;
+    private Button downloadButton, cancelButton, startButton, clearCacheButton, deleteAllButton, terminateButton, resetButton, compactButton;
+    private CheckBox runAsRootCheckBox, snapshotCheckBox, headlessCheckBox;
     private Process qemuProcess;
     private FileUtils fileUtils;
+    private VmSnapshotManager snapshotManager;
+    private VmImageManager imageManager;
+    private MemoryManager memoryManager;
+    private InstallSnapshot installSnapshot;
+    private ReadinessProbe readinessProbe;
+    private final TaskRuntime taskRuntime = new TaskRuntime(TASK_THREADS);
+    private volatile TaskRuntime.Task currentTask;
+    private volatile String vmFingerprint;
+    private volatile boolean homeAssistantReady;
 
 
     @Override
@@ -49,20 +65,33 @@ public class MainActivity extends AppCompatActivity {
         setContentView(R.layout.activity_main);
 
         fileUtils = new FileUtils(getApplicationContext());
+        snapshotManager = new VmSnapshotManager(fileUtils);
+        imageManager = new VmImageManager(fileUtils, snapshotManager, this::run);
+        installSnapshot = new InstallSnapshot(fileUtils.filesDir(), fileUtils.snapshotDir());
+        readinessProbe = new ReadinessProbe("http://127.0.0.1:" + HOME_ASSISTANT_PORT + "/", new File(fileUtils.filesDir(), ReadinessProbe.HISTORY_FILE));
+        memoryManager = new MemoryManager(fileUtils.qmpSocket(), MemoryManager.MIN_GUEST_MB, MemoryManager.MAX_GUEST_MB);
 
         statusTextView = findViewById(R.id.textView);
         downloadButton = findViewById(R.id.download_button);
+        cancelButton = findViewById(R.id.cancel_button);
         startButton = findViewById(R.id.start_button);
         clearCacheButton = findViewById(R.id.clear_cache_button);
         deleteAllButton = findViewById(R.id.delete_all_button);
         terminateButton = findViewById(R.id.terminate_button);
+        resetButton = findViewById(R.id.reset_button);
+        compactButton = findViewById(R.id.compact_button);
         runAsRootCheckBox = findViewById(R.id.run_as_root_checkbox);
+        snapshotCheckBox = findViewById(R.id.snapshot_checkbox);
+        headlessCheckBox = findViewById(R.id.headless_checkbox);
 
         downloadButton.setOnClickListener(v -> downloadFiles());
+        cancelButton.setOnClickListener(v -> cancelTask());
         startButton.setOnClickListener(v -> startVm());
         clearCacheButton.setOnClickListener(v -> clearCache());
         deleteAllButton.setOnClickListener(v -> confirmDeleteAllData());
-        terminateButton.setOnClickListener(v -> terminateVm());
+        resetButton.setOnClickListener(v -> chooseImageAction());
+        compactButton.setOnClickListener(v -> confirmCompactDisk());
+        terminateButton.setOnClickListener(v -> terminateVm(snapshotCheckBox.isChecked()));
 
         checkFilesExistAndUpdateUi();
     }
@@ -78,98 +107,209 @@ public class MainActivity extends AppCompatActivity {
     }
 
 
-    public String getLatestHaosDownloadUrl() throws Exception {
-        String apiUrl = "https://api.github.com/repos/home-assistant/operating-system/releases/latest";
-        URL url = new URL(apiUrl);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestMethod("GET");
-        conn.setRequestProperty("Accept", "application/vnd.github.v3+json");
-
-        if (conn.getResponseCode() != 200) {
-            throw new RuntimeException("Failed : HTTP error code : " + conn.getResponseCode());
-        }
-
-        BufferedReader br = new BufferedReader(new InputStreamReader((conn.getInputStream())));
-        StringBuilder response = new StringBuilder();
-        String output;
-        while ((output = br.readLine()) != null) {
-            response.append(output);
-        }
-        conn.disconnect();
-
-        JSONObject json = new JSONObject(response.toString());
-        String tagName = json.getString("tag_name");
-        JSONArray assets = json.getJSONArray("assets");
-
-        String targetAssetName = "haos_generic-aarch64-" + tagName + ".qcow2.xz";
-        for (int i = 0; i < assets.length(); i++) {
-            JSONObject asset = assets.getJSONObject(i);
-            String name = asset.getString("name");
-            if (name.equals(targetAssetName)) {
-                return asset.getString("browser_download_url");
+    /**
+     * Reads mirror overrides from endpoints.properties in the app's no-backup directory, if present:
+     * debian.repository (a Debian mirror root) and haos.releases (the latest-release API URL).
+     */
+    private Properties loadEndpoints() {
+        Properties endpoints = new Properties();
+        File file = fileUtils.endpointsFile();
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                endpoints.load(in);
+                Log.i(TAG, "Using endpoints from " + file + ": " + endpoints);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read " + file + ", using the default endpoints", e);
             }
         }
+        return endpoints;
+    }
 
-        throw new RuntimeException("Asset not found: " + targetAssetName);
+
+    /**
+     * Checks the snapshot against the package index the repository publishes now, and discards it if it was
+     * installed from another one. Without a network connection the snapshot is used as is.
+     */
+    private boolean isSnapshotCurrent(PackageManager packageManager) throws InterruptedIOException {
+        String current;
+        try {
+            current = packageManager.currentIndexHash();
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            Log.i(TAG, "Could not check the package index, restoring QEMU from the snapshot", e);
+            return true;
+        }
+        if (current != null && current.equals(installSnapshot.indexHash())) return true;
+        Log.i(TAG, "The package index changed since the snapshot was saved, discarding it");
+        installSnapshot.delete();
+        return false;
     }
 
 
     private void downloadFiles() {
         setAllButtonsEnabled(false);
-        new Thread(() -> {
-            PackageManager.StatusListener listener = new PackageManager.StatusListener() {
-                @Override
-                public void onStatusUpdate(String message) {
-                    updateStatus(message);
-                }
+        final SetupMetrics metrics = new SetupMetrics();
+        final Properties endpoints = loadEndpoints();
+        final AtomicBoolean restored = new AtomicBoolean();
+        final AtomicReference<String> indexHash = new AtomicReference<>();
+        final AtomicReference<File> osImageXz = new AtomicReference<>();
+        PackageManager.StatusListener listener = new PackageManager.StatusListener() {
+            @Override
+            public void onStatusUpdate(String message) {
+                updateStatus(message);
+            }
 
-                @Override
-                public void onFinalMessage(String message) {
-                    updateStatus(message);
-                    // Now that packages and firmware are set up, download the OS image
-                    downloadOsImage();
+            @Override
+            public void onFinalMessage(String message) {
+                updateStatus(message);
+            }
+
+            @Override
+            public void onError(String message, Throwable e) {
+                updateStatus(message + ": " + e.getMessage());
+                Log.e(TAG, message, e);
+            }
+        };
+
+        // The OS image does not depend on the packages, so it is downloaded while they are installed.
+        // Only unpacking it needs qemu-img.
+        TaskRuntime.Task task = taskRuntime.newTask("Setup")
+            .phase("packages", t -> {
+                PackageManager packageManager = new PackageManager(fileUtils, listener, metrics);
+                packageManager.setRepositoryUrl(endpoints.getProperty("debian.repository", PackageManager.DEFAULT_REPOSITORY_URL));
+                // An installed tree is always updated from the network; the snapshot only replaces a missing one.
+                if (!new File(fileUtils.filesDir(), "usr").exists() && installSnapshot.isAvailable() && isSnapshotCurrent(packageManager)) {
+                    try (SetupMetrics.Phase phase = metrics.begin("snapshot-restore")) {
+                        phase.addBytesIn(installSnapshot.archive().length());
+                        phase.addBytesOut(installSnapshot.restore(message -> updateStatus(message)));
+                        updateStatus("QEMU restored from the local snapshot.");
+                        restored.set(true);
+                        return;
+                    } catch (InterruptedIOException e) {
+                        throw e;
+                    } catch (IOException e) {
+                        Log.w(TAG, "Could not restore the installed tree, installing from the network", e);
+                        installSnapshot.delete();
+                    }
                 }
 
-                @Override
-                public void onError(String message, Throwable e) {
-                    updateStatus(message + ": " + e.getMessage());
-                    Log.e(TAG, message, e);
-                    runOnUiThread(MainActivity.this::checkFilesExistAndUpdateUi);
+                packageManager.setCommandRunner(this::run);
+                packageManager.setRuntimeClosure(
+                        Arrays.asList(QEMU_BINARY_PATH, VmImageManager.QEMU_IMG_PATH, FileUtils.LOADER_PATH),
+                        Arrays.asList(QEMU_DATA_PATH, AAVMF_DATA_PATH));
+                updateStatus(packageManager.install(Arrays.asList("qemu-system-aarch64", "qemu-efi-aarch64", "qemu-utils")));
+                indexHash.set(packageManager.getIndexHash());
+            })
+            .phase("snapshot-export", t -> {
+                if (restored.get()) return;
+                try (SetupMetrics.Phase phase = metrics.begin("snapshot-export")) {
+                    updateStatus("Saving a local copy of QEMU for reinstalls...");
+                    phase.addBytesOut(installSnapshot.export(indexHash.get()));
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not export the installed tree", e);
+                    installSnapshot.delete();
+                }
+            }, "packages")
+            .phase("os-image-download", t -> {
+                String url = new HaosReleases(endpoints.getProperty("haos.releases", HaosReleases.DEFAULT_API_URL)).latestDownloadUrl();
+                String fileName = url.substring(url.lastIndexOf('/') + 1);
+                File file = new File(fileUtils.cacheDir(), fileName);
+                try (SetupMetrics.Phase phase = metrics.begin("os-image-download", fileName)) {
+                    FileUtils.downloadUrlToFile(url, file, false, message -> updateStatus(message));
+                    phase.addBytesIn(file.length());
                 }
-            };
+                osImageXz.set(file);
+            })
+            .phase("os-image-install", t -> {
+                File file = osImageXz.get();
+                try (SetupMetrics.Phase phase = metrics.begin("os-image-install", file.getName())) {
+                    imageManager.installRelease(file, message -> updateStatus(message));
+                    phase.addBytesIn(file.length());
+                    File base = imageManager.currentBase();
+                    if (base != null) phase.addBytesOut(base.length());
+                }
+            }, "packages", "os-image-download");
 
-            PackageManager packageManager = new PackageManager(fileUtils, listener);
-            packageManager.installPackages(Arrays.asList("qemu-system-aarch64", "qemu-efi-aarch64"));
-        }).start();
+        runTask(task, true, "Error during setup", () -> {
+            updateStatus("Setup complete! Ready to start VM.");
+            showSetupSummary(metrics);
+        });
     }
 
 
-    private void downloadOsImage() {
-        new Thread(() -> {
-            try {
-                File osImage = new File(fileUtils.filesDir(), OS_IMAGE_PATH);
-                // if (!osImage.exists()) {
-                String url = getLatestHaosDownloadUrl();
-                String fileName = url.substring(url.lastIndexOf('/') + 1);
-                File osImageXz = new File(fileUtils.cacheDir(), fileName);
-                FileUtils.downloadUrlToFile(url, osImageXz, false, message -> updateStatus(message));
-                decompressXz(osImageXz, osImage);
-                // }
-                updateStatus("Setup complete! Ready to start VM.");
-            } catch (Exception e) {
-                updateStatus("Error during OS image download: " + e.getMessage());
-                Log.e(TAG, "Error in OS image download thread", e);
-            } finally {
-                runOnUiThread(this::checkFilesExistAndUpdateUi);
+    /**
+     * Starts a task and refreshes the UI once it has finished. Only one cancellable task runs at a time;
+     * the cancel button stops it.
+     * @param onSuccess Runs on the task's thread after all phases completed, may be null.
+     */
+    private void runTask(TaskRuntime.Task task, boolean cancellable, String errorMessage, Runnable onSuccess) {
+        if (cancellable) {
+            currentTask = task;
+            cancelButton.setEnabled(true);
+        }
+        task.start(new TaskRuntime.Listener() {
+            @Override
+            public void onSuccess(TaskRuntime.Task task) {
+                finishTask(task);
+                if (onSuccess != null) onSuccess.run();
+            }
+
+            @Override
+            public void onFailure(TaskRuntime.Task task, String phase, Throwable error) {
+                Log.e(TAG, errorMessage + " (" + task.getName() + ", phase " + phase + ")", error);
+                finishTask(task);
+                updateStatus(errorMessage + ": " + error.getMessage());
+            }
+
+            @Override
+            public void onCancelled(TaskRuntime.Task task) {
+                finishTask(task);
+                updateStatus(task.getName() + " cancelled.");
             }
-        }).start();
+        });
+    }
+
+
+    private void finishTask(TaskRuntime.Task task) {
+        if (currentTask == task) currentTask = null;
+        runOnUiThread(this::checkFilesExistAndUpdateUi);
+    }
+
+
+    private void cancelTask() {
+        TaskRuntime.Task task = currentTask;
+        if (task == null) return;
+        cancelButton.setEnabled(false);
+        updateStatus("Cancelling " + task.getName() + "...");
+        // Cancelling closes sockets, which must not happen on the UI thread.
+        new Thread(task::cancel, "Cancel-" + task.getName()).start();
+    }
+
+
+    /**
+     * Returns the display and console arguments. Headless mode has no display, no VNC server and no monitor,
+     * and writes the serial console to a log file. The debug profile shows the serial console and the monitor over VNC.
+     * Neither changes the virtual hardware, so saved VM states work with both.
+     */
+    private String displayArgs(boolean headless) {
+        if (!headless) return " -vnc 0.0.0.0:0 -display none -serial vc";
+        File serialLog = new File(fileUtils.filesDir(), SERIAL_LOG_PATH);
+        return " -display none -monitor none" +
+                " -chardev file,id=serial0,path=" + serialLog.getAbsolutePath() +
+                " -serial chardev:serial0";
     }
 
 
     private void startVm() {
         setAllButtonsEnabled(false);
         updateStatus("Starting VM...");
-        new Thread(() -> {
+        final boolean useSnapshot = snapshotCheckBox.isChecked();
+        final boolean headless = headlessCheckBox.isChecked();
+        runTask(taskRuntime.newTask("Start VM").phase("qemu", t -> {
+            boolean resuming = false;
             try {
                 File qemuBinary = new File(fileUtils.filesDir(), QEMU_BINARY_PATH);
                 File osImage = new File(fileUtils.filesDir(), OS_IMAGE_PATH);
@@ -194,28 +334,69 @@ public class MainActivity extends AppCompatActivity {
                 if(pidFile.exists()) pidFile.delete();
                 osImage.setWritable(true);
 
+                // The virtual hardware. A saved VM state can only be restored onto identical hardware.
+                String machineArgs = memoryManager.qemuArgs() +
+                        " -M virt,highmem=on -cpu cortex-a72 -smp 8" +
+                        // discard=unmap lets the guest's fstrim free clusters in the overlay, which compacting then drops
+                        " -drive file=" + osImage.getAbsolutePath() + ",format=qcow2,if=none,id=hd0,discard=unmap" +
+                        " -device virtio-blk-device,drive=hd0" +
+                        " -netdev user,id=net0,hostfwd=tcp::" + HOME_ASSISTANT_PORT + "-:" + HOME_ASSISTANT_PORT + ",dns=1.1.1.1" +
+                        " -device virtio-net-pci,netdev=net0,romfile=\"\"" +
+                        " -drive if=pflash,format=raw,readonly=on,file=" + aavmfCodeFd.getAbsolutePath() +
+                        " -drive if=pflash,format=raw,file=" + aavmfVarsFd.getAbsolutePath();
+                vmFingerprint = VmSnapshotManager.fingerprint(machineArgs, qemuBinary, aavmfCodeFd, aavmfVarsTemplate);
+
                         // "chmod -R 755 " + fileUtils.binDir().getAbsolutePath() + " && " +
                 String command = "chmod -R a+rx " + fileUtils.filesDir().getAbsolutePath() + " && " +
                         "export PATH=" + fileUtils.binDir().getAbsolutePath() + ":$PATH && " +
-                        fileUtils.libDir().getAbsolutePath() + "/aarch64-linux-gnu/ld-linux-aarch64.so.1 --library-path " + fileUtils.libDir().getAbsolutePath() + "/aarch64-linux-gnu " +
+                        fileUtils.loaderPrefix() +
                         // "export LD_LIBRARY_PATH=" + fileUtils.libDir().getAbsolutePath() + ":" + fileUtils.libDir().getAbsolutePath() + "/aarch64-linux-gnu && " +
                         qemuBinary.getAbsolutePath() +
-                        " -m 8192 -M virt,highmem=on -cpu cortex-a72 -smp 8" +
-                        " -drive file=" + osImage.getAbsolutePath() + ",format=qcow2,if=none,id=hd0" +
-                        " -device virtio-blk-device,drive=hd0" +
-                        " -netdev user,id=net0,hostfwd=tcp::8123-:8123,dns=1.1.1.1" +
-                        " -device virtio-net-pci,netdev=net0,romfile=\"\"" +
-                        " -drive if=pflash,format=raw,readonly=on,file=" + aavmfCodeFd.getAbsolutePath() +
-                        " -drive if=pflash,format=raw,file=" + aavmfVarsFd.getAbsolutePath() +
-                        " -vnc 0.0.0.0:0 -display none -serial vc" +
+                        machineArgs +
+                        displayArgs(headless) +
+                        " -qmp unix:" + fileUtils.qmpSocket().getAbsolutePath() + ",server=on,wait=off" +
                         " -pidfile " + pidFile.getAbsolutePath() +
-                        " -L " + fileUtils.filesDir() + "/usr/share/qemu";
+                        " -L " + new File(fileUtils.filesDir(), QEMU_DATA_PATH).getAbsolutePath();
+
+                String qmpSocket = fileUtils.qmpSocket().getAbsolutePath();
+                fileUtils.qmpSocket().delete();
+                if (runAsRootCheckBox.isChecked()) {
+                    // QEMU creates the QMP socket as root; hand it to the app, which connects without root.
+                    command = "(for i in $(seq 300); do if [ -S " + qmpSocket + " ]; then chown " + android.os.Process.myUid() + " " + qmpSocket +
+                            "; break; fi; sleep 0.1; done) & " + command;
+                }
+
+                if (useSnapshot && snapshotManager.prepareResume(vmFingerprint)) {
+                    resuming = true;
+                    command += snapshotManager.incomingArgument();
+                    updateStatus("Resuming VM from saved state...");
+                } else {
+                    snapshotManager.discard();
+                }
 
                 // command += " -accel kvm";
+                final String profile = (resuming ? "resume" : "cold") + (headless ? " headless" : " vnc");
+                homeAssistantReady = false;
+                long startNanos = System.nanoTime();
                 qemuProcess = run(command);
+                memoryManager.start();
+                readinessProbe.start(startNanos, profile, new ReadinessProbe.Listener() {
+                    @Override
+                    public void onReady(long bootMillis, int httpStatus) {
+                        homeAssistantReady = true;
+                        updateStatus(String.format(Locale.US, "Home Assistant is ready after %.1f s (%s: %s).\nOpen http://localhost:%d in a browser.",
+                                bootMillis / 1000.0, profile, ReadinessProbe.summary(readinessProbe.historyFile(), profile), HOME_ASSISTANT_PORT));
+                    }
+
+                    @Override
+                    public void onTimeout(long waitedMillis) {
+                        updateStatus("Home Assistant did not answer on port " + HOME_ASSISTANT_PORT + " within " + waitedMillis / 1000 + " s.");
+                    }
+                });
 
                 runOnUiThread(this::checkFilesExistAndUpdateUi);
 
+                final boolean resumeFailed = resuming && !resumeVm();
                 new Thread(() -> {
                     try (BufferedReader reader = new BufferedReader(new InputStreamReader(qemuProcess.getInputStream()))) {
                         String line; while ((line = reader.readLine()) != null) Log.d(TAG, "QEMU stdout: " + line);
@@ -233,8 +414,13 @@ public class MainActivity extends AppCompatActivity {
                 }).start();
 
                 int exitValue = qemuProcess.waitFor();
-                if (exitValue != 0) {
-                    updateStatus("VM process exited with error code " + exitValue + ".\n" + "Error: " + errorOutput.toString());
+                if (resumeFailed) {
+                    updateStatus("The VM could not be resumed from its saved state and was stopped. The next start will cold-boot.");
+                } else if (exitValue != 0) {
+                    String hint = resuming ? "\nThe saved VM state was discarded. The next start will cold-boot." : "";
+                    updateStatus("VM process exited with error code " + exitValue + ".\n" + "Error: " + errorOutput.toString() + hint);
+                } else if (snapshotManager.hasSavedState()) {
+                    updateStatus("VM state saved. The next start will resume from it.");
                 } else {
                     updateStatus("VM process started successfully (but has exited).");
                 }
@@ -242,15 +428,73 @@ public class MainActivity extends AppCompatActivity {
                 updateStatus("Error starting VM: " + e.getMessage());
                 Log.e(TAG, "Error in startVm thread", e);
             } finally {
+                readinessProbe.stop();
+                memoryManager.stop();
+                if (resuming) snapshotManager.finishResume();
                 qemuProcess = null;
-                runOnUiThread(this::checkFilesExistAndUpdateUi);
             }
-        }).start();
+        }), false, "Error starting VM", null);
     }
 
 
-    private void terminateVm() {
-        new Thread(() -> {
+    /**
+     * Lets a VM started with a saved state run once QEMU has loaded it. If it does not get to running,
+     * QEMU is asked to quit, since a VM that is stuck paused would never answer.
+     * @return True if the VM is running.
+     */
+    private boolean resumeVm() {
+        try (QmpClient qmp = connectQmp(QMP_CONNECT_TIMEOUT_MS)) {
+            if (snapshotManager.resume(qmp)) {
+                updateStatus("VM resumed from saved state.");
+                return true;
+            }
+            qmp.execute("quit", null);
+        } catch (Exception e) {
+            Log.e(TAG, "Error resuming VM", e);
+        }
+        return false;
+    }
+
+
+    /**
+     * Connects to QMP, waiting for QEMU to open the socket if it is still starting.
+     */
+    private QmpClient connectQmp(long timeoutMs) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (true) {
+            try {
+                return QmpClient.connect(fileUtils.qmpSocket(), 10000);
+            } catch (IOException e) {
+                Process process = qemuProcess;
+                if (process == null || !process.isAlive() || System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(200);
+            }
+        }
+    }
+
+
+    /**
+     * Asks QEMU over QMP to save the VM state and quit.
+     * @return True if QEMU is shutting down with a saved state.
+     */
+    private boolean saveVmState() {
+        String fingerprint = vmFingerprint;
+        if (fingerprint == null) return false;
+        updateStatus("Saving VM state...");
+        try (QmpClient qmp = QmpClient.connect(fileUtils.qmpSocket(), 10000)) {
+            return snapshotManager.save(qmp, fingerprint);
+        } catch (Exception e) {
+            Log.e(TAG, "Error saving VM state", e);
+            updateStatus("Could not save VM state: " + e.getMessage());
+            return false;
+        }
+    }
+
+
+    private void terminateVm(boolean saveState) {
+        memoryManager.stop();
+        runTask(taskRuntime.newTask("Stop VM").phase("stop", t -> {
+            if (saveState && saveVmState()) return;
             File pidFile = new File(fileUtils.filesDir(), "qemu.pid");
             if (pidFile.exists()) {
                 try {
@@ -280,18 +524,79 @@ public class MainActivity extends AppCompatActivity {
                     qemuProcess.destroy();
                 }
             }
-            runOnUiThread(this::checkFilesExistAndUpdateUi);
-        }).start();
+        }), false, "Error stopping VM", null);
     }
 
 
-    private void decompressXz(File source, File dest) throws IOException {
-        updateStatus("Unpacking " + source.getName() + "...");
-        try (InputStream in = new XZInputStream(new FileInputStream(source)); OutputStream out = new FileOutputStream(dest)) {
-            byte[] buffer = new byte[8192];
-            int read;
-            while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+    private void showSetupSummary(SetupMetrics metrics) {
+        File report = new File(fileUtils.filesDir(), SetupMetrics.REPORT_FILE);
+        try {
+            metrics.writeReport(report);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing setup metrics", e);
+        }
+        final String summary = metrics.summary();
+        Log.i(TAG, "Setup metrics:\n" + summary);
+        runOnUiThread(() -> new AlertDialog.Builder(this)
+            .setTitle("Setup Complete")
+            .setMessage(summary + "\nFull report: " + report.getAbsolutePath())
+            .setPositiveButton(android.R.string.ok, null).show());
+    }
+
+
+    private void chooseImageAction() {
+        File currentBase = imageManager.currentBase();
+        List<File> targets = new ArrayList<>();
+        List<String> labels = new ArrayList<>();
+        if (imageManager.canReset()) {
+            targets.add(null);
+            labels.add("Reset to " + currentBase.getName() + " (discard all changes)");
+        }
+        for (File base : imageManager.installedBases()) {
+            if (base.equals(currentBase)) continue;
+            targets.add(base);
+            labels.add("Switch to " + base.getName() + " (keep changes)");
+        }
+        if (targets.isEmpty()) {
+            Toast.makeText(this, "No base image installed. Download the files first.", Toast.LENGTH_SHORT).show();
+            return;
         }
+
+        new AlertDialog.Builder(this)
+            .setTitle("OS Image")
+            .setItems(labels.toArray(new String[0]), (dialog, which) -> {
+                File target = targets.get(which);
+                setAllButtonsEnabled(false);
+                // Not cancellable: an interrupted rebase would leave the overlay pointing at the wrong base.
+                runTask(taskRuntime.newTask("OS image change").phase("image", t -> {
+                    if (target == null) {
+                        imageManager.reset();
+                        updateStatus("VM disk reset to " + currentBase.getName() + ".");
+                    } else {
+                        imageManager.rebase(target);
+                        updateStatus("VM disk now based on " + target.getName() + ".");
+                    }
+                }), false, "Error changing OS image", null);
+            })
+            .setNegativeButton(android.R.string.cancel, null).show();
+    }
+
+
+    private void confirmCompactDisk() {
+        new AlertDialog.Builder(this)
+            .setTitle("Compact VM Disk?")
+            .setMessage("Rewrites " + OS_IMAGE_PATH + " without unused space and defragments it. This needs free space up to the current disk size and can take several minutes. Home Assistant data is kept.")
+            .setPositiveButton(android.R.string.ok, (dialog, which) -> compactDisk())
+            .setNegativeButton(android.R.string.cancel, null).show();
+    }
+
+
+    private void compactDisk() {
+        setAllButtonsEnabled(false);
+        final VmImageManager.CompactionResult[] result = new VmImageManager.CompactionResult[1];
+        // Cancellable: the compacted copy only replaces the disk once it is complete.
+        runTask(taskRuntime.newTask("Compaction").phase("compact", t -> result[0] = imageManager.compact(message -> updateStatus(message))),
+                true, "Error compacting VM disk", () -> updateStatus(result[0].summary()));
     }
 
 
@@ -310,7 +615,7 @@ public class MainActivity extends AppCompatActivity {
     private void confirmDeleteAllData() {
         new AlertDialog.Builder(this)
             .setTitle("Delete All Data?")
-            .setMessage("This will delete QEMU, its libraries, and the Home Assistant OS image. All Home Assistant data will be lost. Are you sure?")
+            .setMessage("This will delete QEMU, its libraries, and the Home Assistant OS image. All Home Assistant data will be lost. A local copy of QEMU is kept, so it can be reinstalled without downloading it again. Are you sure?")
             .setIcon(android.R.drawable.ic_dialog_alert)
             .setPositiveButton(android.R.string.yes, (dialog, whichButton) -> deleteAllData())
             .setNegativeButton(android.R.string.no, null).show();
@@ -320,7 +625,7 @@ public class MainActivity extends AppCompatActivity {
     private void deleteAllData() {
         // Stop the VM if it is running
         if (isVMRunning()) {
-            terminateVm();
+            terminateVm(false);
         }
 
         FileUtils.deleteRecursive(fileUtils.filesDir());
@@ -364,14 +669,21 @@ public class MainActivity extends AppCompatActivity {
         boolean isRunning = isVMRunning();
 
         runAsRootCheckBox.setEnabled(!isRunning);
+        snapshotCheckBox.setEnabled(!isRunning);
+        headlessCheckBox.setEnabled(!isRunning);
         startButton.setEnabled(startable && !isRunning);
         terminateButton.setEnabled(isRunning);
         downloadButton.setEnabled(!isRunning);
+        cancelButton.setEnabled(currentTask != null);
         clearCacheButton.setEnabled(cacheExists);
         deleteAllButton.setEnabled(dataExists);
+        resetButton.setEnabled(!isRunning && !imageManager.installedBases().isEmpty() && imageManager.qemuImg().exists());
+        compactButton.setEnabled(!isRunning && imageManager.canCompact());
 
         if (isRunning) {
-            updateStatus("VM is running.");
+            updateStatus(homeAssistantReady
+                    ? "VM is running. Home Assistant is ready on port " + HOME_ASSISTANT_PORT + "."
+                    : "VM is running. Waiting for Home Assistant on port " + HOME_ASSISTANT_PORT + "...");
         } else if (startable) {
             updateStatus("Ready. You can check for updates or start VM.");
         } else {
@@ -382,10 +694,15 @@ public class MainActivity extends AppCompatActivity {
 
     private void setAllButtonsEnabled(boolean enabled) {
         runAsRootCheckBox.setEnabled(enabled);
+        snapshotCheckBox.setEnabled(enabled);
+        headlessCheckBox.setEnabled(enabled);
         startButton.setEnabled(enabled);
         terminateButton.setEnabled(enabled);
         downloadButton.setEnabled(enabled);
+        cancelButton.setEnabled(enabled && currentTask != null);
         clearCacheButton.setEnabled(enabled);
         deleteAllButton.setEnabled(enabled);
+        resetButton.setEnabled(enabled);
+        compactButton.setEnabled(enabled);
     }
 }
@@ -0,0 +1,169 @@
+package com.example.hassosonandroid;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+
+/**
+ * Keeps the guest's memory reservation within what the phone can currently spare.
+ *
+ * The VM is started with its maximum memory and a virtio-balloon device with free-page reporting, so pages the
+ * guest frees are handed back to Android right away. This class watches host memory pressure in /proc/meminfo
+ * and inflates the balloon (shrinking the guest) when Android runs low, or deflates it again when memory is free.
+ * That way the low-memory killer does not have to pick between QEMU and the app.
+ */
+public class MemoryManager {
+    private static final String TAG = "HassOSMemory";
+    private static final String MEMINFO_PATH = "/proc/meminfo";
+    private static final long MB = 1024 * 1024;
+
+    public static final int MAX_GUEST_MB = 8192;
+    public static final int MIN_GUEST_MB = 2048;
+    private static final int STEP_MB = 512;
+    private static final long POLL_INTERVAL_MS = 10000;
+
+    // Shrink the guest below this share of host RAM available, grow it above the upper one.
+    private static final double LOW_AVAILABLE_RATIO = 0.10;
+    private static final double HIGH_AVAILABLE_RATIO = 0.25;
+    private static final long LOW_AVAILABLE_MIN_MB = 768;
+
+    private final File qmpSocket;
+    private final int minGuestMb;
+    private final int maxGuestMb;
+    private Thread monitorThread;
+
+
+    public MemoryManager(File qmpSocket, int minGuestMb, int maxGuestMb) {
+        this.qmpSocket = qmpSocket;
+        this.minGuestMb = minGuestMb;
+        this.maxGuestMb = maxGuestMb;
+    }
+
+
+    /**
+     * Returns the QEMU arguments for the guest memory size and the balloon device.
+     */
+    public String qemuArgs() {
+        return " -m " + maxGuestMb +
+                " -device virtio-balloon-pci,id=balloon0,deflate-on-oom=on,free-page-reporting=on";
+    }
+
+
+    public static class MemInfo {
+        public long totalMb;
+        // -1 if /proc/meminfo gave no usable figure
+        public long availableMb = -1;
+    }
+
+
+    public static MemInfo readMemInfo() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(MEMINFO_PATH))) {
+            return readMemInfo(reader);
+        }
+    }
+
+
+    /**
+     * Parses /proc/meminfo. Kernels before 3.14 have no MemAvailable; MemFree plus Cached is used instead.
+     */
+    static MemInfo readMemInfo(BufferedReader reader) throws IOException {
+        MemInfo info = new MemInfo();
+        long freeKb = -1;
+        long cachedKb = -1;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("MemTotal:")) info.totalMb = parseKb(line) / 1024;
+            else if (line.startsWith("MemAvailable:")) info.availableMb = parseKb(line) / 1024;
+            else if (line.startsWith("MemFree:")) freeKb = parseKb(line);
+            else if (line.startsWith("Cached:")) cachedKb = parseKb(line);
+        }
+        if (info.availableMb < 0 && freeKb >= 0 && cachedKb >= 0) info.availableMb = (freeKb + cachedKb) / 1024;
+        return info;
+    }
+
+
+    private static long parseKb(String line) {
+        String[] parts = line.split("\\s+");
+        return parts.length >= 2 ? Long.parseLong(parts[1]) : 0;
+    }
+
+
+    /**
+     * Computes the next balloon target for the guest.
+     * @param currentMb The memory the guest currently has.
+     * @return The new target in MB, within [minGuestMb, maxGuestMb], or currentMb if host memory is unknown.
+     */
+    int nextTargetMb(MemInfo host, int currentMb) {
+        if (host.totalMb <= 0 || host.availableMb < 0) return currentMb;
+        long low = Math.max(LOW_AVAILABLE_MIN_MB, (long) (host.totalMb * LOW_AVAILABLE_RATIO));
+        long high = Math.max(low + STEP_MB, (long) (host.totalMb * HIGH_AVAILABLE_RATIO));
+
+        int target = currentMb;
+        if (host.availableMb < low) {
+            // Give back at least what is missing, in whole steps.
+            long missing = low - host.availableMb;
+            target = currentMb - (int) Math.max(STEP_MB, ((missing + STEP_MB - 1) / STEP_MB) * STEP_MB);
+        } else if (host.availableMb > high) {
+            target = currentMb + STEP_MB;
+        }
+        return Math.max(minGuestMb, Math.min(maxGuestMb, target));
+    }
+
+
+    /**
+     * Starts watching host memory. Safe to call while QEMU is still starting; failed polls are retried.
+     */
+    public synchronized void start() {
+        stop();
+        monitorThread = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    poll();
+                } catch (IOException e) {
+                    Log.d(TAG, "Memory poll failed: " + e.getMessage());
+                }
+                try {
+                    Thread.sleep(POLL_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "MemoryManager");
+        monitorThread.start();
+    }
+
+
+    public synchronized void stop() {
+        if (monitorThread != null) {
+            monitorThread.interrupt();
+            monitorThread = null;
+        }
+    }
+
+
+    private void poll() throws IOException {
+        MemInfo host = readMemInfo();
+        // The QMP socket only serves one client at a time, so never hold on to the connection.
+        try (QmpClient qmp = QmpClient.connect(qmpSocket, 5000)) {
+            Object balloon = qmp.execute("query-balloon", null);
+            if (!(balloon instanceof JSONObject)) return;
+            int currentMb = (int) (((JSONObject) balloon).optLong("actual") / MB);
+            int targetMb = nextTargetMb(host, currentMb);
+            if (targetMb == currentMb) return;
+
+            Log.i(TAG, "Host available " + host.availableMb + " MB of " + host.totalMb + " MB. Guest " + currentMb + " MB -> " + targetMb + " MB");
+            JSONObject args = new JSONObject();
+            args.put("value", targetMb * MB);
+            qmp.execute("balloon", args);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.example.hassosonandroid;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A compact, read-only view of a Debian Packages index.
+ *
+ * Only what the resolver needs to find a package is kept in memory, as a few flat arrays: the package names
+ * back to back in one byte array, an open-addressing hash table over them, and where each stanza starts and ends
+ * in the index. Provides are kept per virtual name as arrays of package numbers.
+ * Everything else (Version, Depends, Filename, SHA256, ...) stays in the index and is only decoded when a package
+ * is looked up, which during a resolve happens for a few hundred out of tens of thousands of packages.
+ *
+ * Not thread-safe.
+ */
+public class PackageIndex implements Closeable {
+    private final Source source;
+    private final int count;
+    private final byte[] names;
+    // Name i is names[nameEnds[i - 1]..nameEnds[i]), with nameEnds[-1] taken as 0
+    private final int[] nameEnds;
+    private final long[] stanzaOffsets;
+    private final int[] stanzaLengths;
+    // Package number + 1 per slot, 0 for an empty slot
+    private final int[] slots;
+    private final Map<String, int[]> providers;
+    private final PackageManager.PackageInfo[] decoded;
+    private final int size;
+
+
+    private interface Source extends Closeable {
+        void read(long offset, byte[] into) throws IOException;
+    }
+
+
+    private PackageIndex(Builder builder, Source source) {
+        this.source = source;
+        count = builder.count;
+        names = Arrays.copyOf(builder.names, builder.namesLength);
+        nameEnds = Arrays.copyOf(builder.nameEnds, count);
+        stanzaOffsets = Arrays.copyOf(builder.stanzaOffsets, count);
+        stanzaLengths = Arrays.copyOf(builder.stanzaLengths, count);
+        decoded = new PackageManager.PackageInfo[count];
+
+        // A later stanza with the same name replaces the earlier one, as a map would.
+        slots = new int[Integer.highestOneBit(Math.max(count, 1) * 2) * 2];
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            int slot = slotOf(names, nameStart(i), nameEnds[i]);
+            if (slots[slot] == 0) distinct++;
+            slots[slot] = i + 1;
+        }
+        size = distinct;
+
+        providers = new HashMap<>(builder.providers.size() * 2);
+        for (Map.Entry<String, int[]> entry : builder.providers.entrySet()) {
+            int[] list = entry.getValue();
+            int[] live = new int[list[0]];
+            int n = 0;
+            for (int k = 1; k <= list[0]; k++) {
+                if (isLive(list[k])) live[n++] = list[k];
+            }
+            if (n > 0) providers.put(entry.getKey(), n == live.length ? live : Arrays.copyOf(live, n));
+        }
+    }
+
+
+    /**
+     * Indexes an uncompressed Packages file. The file must stay in place until the index is closed.
+     */
+    public static PackageIndex open(File file) throws IOException {
+        Builder builder;
+        try (InputStream in = new FileInputStream(file)) {
+            builder = PackagesParser.index(in);
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        return new PackageIndex(builder, new Source() {
+            @Override
+            public void read(long offset, byte[] into) throws IOException {
+                raf.seek(offset);
+                raf.readFully(into);
+            }
+
+            @Override
+            public void close() throws IOException {
+                raf.close();
+            }
+        });
+    }
+
+
+    /**
+     * Indexes an uncompressed Packages index held in memory.
+     */
+    static PackageIndex of(final byte[] data) throws IOException {
+        Builder builder = PackagesParser.index(new ByteArrayInputStream(data));
+        return new PackageIndex(builder, new Source() {
+            @Override
+            public void read(long offset, byte[] into) {
+                System.arraycopy(data, (int) offset, into, 0, into.length);
+            }
+
+            @Override
+            public void close() {}
+        });
+    }
+
+
+    /**
+     * Returns the number of distinct package names.
+     */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * Returns the package with the given name, decoding its stanza on first use.
+     * @return The package, or null if the index has none with that name.
+     */
+    public PackageManager.PackageInfo get(String name) throws IOException {
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        int i = slots[slotOf(key, 0, key.length)] - 1;
+        return i < 0 ? null : decode(i);
+    }
+
+
+    /**
+     * Returns the packages that list the given name in their Provides field, in index order.
+     */
+    public List<PackageManager.PackageInfo> providersOf(String virtual) throws IOException {
+        int[] list = providers.get(virtual);
+        if (list == null) return Collections.emptyList();
+        List<PackageManager.PackageInfo> result = new ArrayList<>(list.length);
+        for (int i : list) result.add(decode(i));
+        return result;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+
+    private PackageManager.PackageInfo decode(int i) throws IOException {
+        PackageManager.PackageInfo info = decoded[i];
+        if (info == null) {
+            byte[] stanza = new byte[stanzaLengths[i]];
+            source.read(stanzaOffsets[i], stanza);
+            info = PackagesParser.parseStanza(stanza);
+            if (info == null) throw new IOException("Package index changed while in use");
+            decoded[i] = info;
+        }
+        return info;
+    }
+
+
+    private int nameStart(int i) {
+        return i == 0 ? 0 : nameEnds[i - 1];
+    }
+
+
+    private boolean isLive(int i) {
+        return slots[slotOf(names, nameStart(i), nameEnds[i])] == i + 1;
+    }
+
+
+    /**
+     * Returns the slot holding the given name, or the empty slot where it would go.
+     */
+    private int slotOf(byte[] key, int from, int to) {
+        int hash = 0;
+        for (int k = from; k < to; k++) hash = 31 * hash + key[k];
+        int mask = slots.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (true) {
+            int i = slots[slot] - 1;
+            if (i < 0 || nameEquals(i, key, from, to)) return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+
+    private boolean nameEquals(int i, byte[] key, int from, int to) {
+        int start = nameStart(i);
+        if (nameEnds[i] - start != to - from) return false;
+        for (int k = 0; k < to - from; k++) {
+            if (names[start + k] != key[from + k]) return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Collects the columns while {@link PackagesParser} scans the index.
+     */
+    static class Builder {
+        private int count;
+        private byte[] names = new byte[64 * 1024];
+        private int namesLength;
+        private int[] nameEnds = new int[1024];
+        private long[] stanzaOffsets = new long[1024];
+        private int[] stanzaLengths = new int[1024];
+        // Virtual name -> {n, package numbers...}, with spare room at the end
+        private final Map<String, int[]> providers = new HashMap<>();
+
+
+        void add(String name, List<String> provides, long offset, long end) {
+            if (count == nameEnds.length) {
+                int capacity = count * 2;
+                nameEnds = Arrays.copyOf(nameEnds, capacity);
+                stanzaOffsets = Arrays.copyOf(stanzaOffsets, capacity);
+                stanzaLengths = Arrays.copyOf(stanzaLengths, capacity);
+            }
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            if (namesLength + bytes.length > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + bytes.length));
+            }
+            System.arraycopy(bytes, 0, names, namesLength, bytes.length);
+            namesLength += bytes.length;
+            nameEnds[count] = namesLength;
+            stanzaOffsets[count] = offset;
+            stanzaLengths[count] = (int) (end - offset);
+
+            for (String virtual : provides) {
+                int[] list = providers.get(virtual);
+                if (list == null) {
+                    list = new int[2];
+                    providers.put(virtual, list);
+                } else if (list[0] + 1 == list.length) {
+                    list = Arrays.copyOf(list, list.length * 2);
+                    providers.put(virtual, list);
+                }
+                list[++list[0]] = count;
+            }
+            count++;
+        }
+    }
+}
@@ -12,34 +12,41 @@ import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.tukaani.xz.XZInputStream;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 public class PackageManager {
     private static final String TAG = "HassOSPackageManager";
-    private static final String DEBIAN_REPO_URL = "https://ftp.debian.org/debian/";
-    private static final String DEBIAN_PACKAGES_FILE_URL = DEBIAN_REPO_URL + "dists/stable/main/binary-arm64/Packages.xz";
+    public static final String DEFAULT_REPOSITORY_URL = "https://ftp.debian.org/debian/";
+    private static final String DEBIAN_DIST_PATH = "dists/stable/";
+    private static final String DEBIAN_PACKAGES_INDEX = "main/binary-arm64/Packages";
+    private static final String PACKAGES_CACHE_FILE = "Packages_main_binary-arm64";
 
     private final FileUtils fileUtils;
     private final StatusListener statusListener;
+    private final SetupMetrics metrics;
+    private String repositoryUrl = DEFAULT_REPOSITORY_URL;
+    private String indexHash;
+    // Runtime closure roots; when set, files QEMU cannot use are skipped or removed after extraction
+    private List<String> runtimeExecutables;
+    private List<String> runtimeDataPaths;
+    private CommandRunner commandRunner;
+    private final List<String> installedPaths = new ArrayList<>();
 
 
     public interface StatusListener {
@@ -50,8 +57,57 @@ public class PackageManager {
 
 
     public PackageManager(FileUtils fileUtils, StatusListener listener) {
+        this(fileUtils, listener, new SetupMetrics());
+    }
+
+
+    public PackageManager(FileUtils fileUtils, StatusListener listener, SetupMetrics metrics) {
         this.fileUtils = fileUtils;
         this.statusListener = listener;
+        this.metrics = metrics;
+    }
+
+
+    /**
+     * Sets the Debian mirror to install from, e.g. a local mirror. Must end with a slash.
+     */
+    public void setRepositoryUrl(String repositoryUrl) {
+        this.repositoryUrl = repositoryUrl;
+    }
+
+
+    /**
+     * Returns the SHA256 of the package index the last {@link #install(List)} resolved against, or null if unknown.
+     */
+    public String getIndexHash() {
+        return indexHash;
+    }
+
+
+    /**
+     * Returns the SHA256 of the package index the repository currently publishes, fetching only its Release file.
+     * @return The hash, or null if the Release file does not list the index.
+     */
+    public String currentIndexHash() throws IOException {
+        return newIndexUpdater().currentHash();
+    }
+
+
+    /**
+     * Restricts the installation to what the given executables load (their transitive DT_NEEDED libraries)
+     * plus the given data paths. Paths are relative to filesDir().
+     */
+    public void setRuntimeClosure(List<String> executables, List<String> dataPaths) {
+        this.runtimeExecutables = executables;
+        this.runtimeDataPaths = dataPaths;
+    }
+
+
+    /**
+     * Sets how to start the extracted QEMU. Without one, its startup time is not measured.
+     */
+    public void setCommandRunner(CommandRunner commandRunner) {
+        this.commandRunner = commandRunner;
     }
 
 
@@ -83,169 +139,135 @@ public class PackageManager {
      * @param initialPackages The list of packages to install.
      */
     public void installPackages(List<String> initialPackages) {
-        final StringBuilder warnings = new StringBuilder();
         try {
-            // 1. Download the package index
-            statusListener.onStatusUpdate("Downloading package index...");
-            Map<String, PackageInfo> packageDb = parsePackagesFile();
-
-            // 2. Initialize the set of selected packages with the initial list
-            Map<String, PackageInfo> selectedPackages = new HashMap<>();
-            for (String pkgName : initialPackages) {
-                PackageInfo info = findBestPackage(packageDb, pkgName, "");
-                if (info != null) {
-                    selectedPackages.put(pkgName, info);
-                } else {
-                    throw new IOException("Initial package not found: " + pkgName);
-                }
-            }
+            statusListener.onFinalMessage(install(initialPackages));
+        } catch (Exception e) {
+            statusListener.onError("Error during package setup", e);
+        }
+    }
 
-            // 3. Iteratively resolve dependencies
-            // The loop continues as long as we are adding new packages to the list.
-            // This ensures that we also resolve the dependencies of the dependencies.
-            statusListener.onStatusUpdate("Resolving dependencies...");
-            boolean changedInIteration;
-            do {
-                changedInIteration = false;
-                // Collect all dependencies from the currently selected packages
-                Set<Dependency> allDependencies = new HashSet<>();
-                for (PackageInfo pkg : selectedPackages.values()) {
-                    allDependencies.addAll(parseDepends(pkg.depends));
-                }
 
-                for (Dependency dep : allDependencies) {
-                    if (selectedPackages.containsKey(dep.packageName)) {
-                        // Package is already selected. We will check for version conflicts later.
-                        continue;
-                    }
+    /**
+     * Downloads, unpacks and links the packages and all their dependencies. Stops early if the current task is cancelled.
+     * @return The final status message, including any resolver warnings.
+     */
+    public String install(List<String> initialPackages) throws Exception {
+        final StringBuilder warnings = new StringBuilder();
+        // 1. Download the package index
+        statusListener.onStatusUpdate("Downloading package index...");
+        PackageIndex packageDb;
+        try (SetupMetrics.Phase phase = metrics.begin("index")) {
+            packageDb = openPackagesFile(phase);
+        }
 
-                    // Try to find a suitable package for this new dependency
-                    PackageInfo candidate = findBestPackage(packageDb, dep.packageName, dep.versionConstraint);
-                    if (candidate != null) {
-                        selectedPackages.put(candidate.packageName, candidate);
-                        changedInIteration = true;
-                    } else {
-                        // If the primary dependency is not found, check alternatives.
-                        boolean foundAlternative = false;
-                        for (Dependency alternative : dep.alternatives) {
-                             if (selectedPackages.containsKey(alternative.packageName)) {
-                                if (alternative.isVersionSatisfied(selectedPackages.get(alternative.packageName).version)) {
-                                    foundAlternative = true;
-                                    break;
-                                }
-                             }
-                             PackageInfo altCandidate = findBestPackage(packageDb, alternative.packageName, alternative.versionConstraint);
-                             if (altCandidate != null) {
-                                 selectedPackages.put(altCandidate.packageName, altCandidate);
-                                 changedInIteration = true;
-                                 foundAlternative = true;
-                                 break;
-                             }
-                        }
-                        if (!foundAlternative) {
-                             warnings.append("Warning: Could not resolve dependency: ").append(dep.packageName).append("\n");
-                        }
-                    }
-                }
-            } while (changedInIteration);
-
-            // 4. Conflict detection
-            // After the dependency set has stabilized, verify that there are no conflicts.
-            statusListener.onStatusUpdate("Verifying dependencies and checking for conflicts...");
-            verifyDependencies(selectedPackages, warnings);
-
-            // 5. Download and unpack all selected packages
-            List<File> downloadedDebs = new ArrayList<>();
-            for (PackageInfo info : selectedPackages.values()) {
-                File debFile = new File(fileUtils.cacheDir(), info.filename.replace('/', '_'));
-                try {
-                    FileUtils.downloadUrlToFile(DEBIAN_REPO_URL + info.filename, debFile, false, message -> statusListener.onStatusUpdate(message));
-                } catch (java.security.GeneralSecurityException e) {
-                    throw new IOException("TLS error downloading package " + info.packageName, e);
+        // 2. Resolve all direct and indirect dependencies
+        statusListener.onStatusUpdate("Resolving dependencies...");
+        Map<String, PackageInfo> selectedPackages;
+        try (SetupMetrics.Phase phase = metrics.begin("resolve"); PackageIndex index = packageDb) {
+            DependencyResolver resolver = new DependencyResolver(index);
+            selectedPackages = resolver.resolve(initialPackages, warnings);
+            for (String choice : resolver.getChoices()) Log.i(TAG, "Resolver " + choice);
+            statusListener.onStatusUpdate(String.format(Locale.US, "Selected %d packages (%.1f MB)",
+                    selectedPackages.size(), resolver.selectedBytes() / (1024.0 * 1024.0)));
+        }
+
+        // 3. Download and unpack all selected packages
+        List<File> downloadedDebs = new ArrayList<>();
+        for (PackageInfo info : selectedPackages.values()) {
+            File debFile = new File(fileUtils.cacheDir(), info.filename.replace('/', '_'));
+            try (SetupMetrics.Phase phase = metrics.begin("download", info.packageName)) {
+                FileUtils.downloadUrlToFile(repositoryUrl + info.filename, debFile, false, message -> statusListener.onStatusUpdate(message));
+                phase.addBytesIn(debFile.length());
+                if (info.sha256 != null && !info.sha256.equalsIgnoreCase(FileUtils.sha256(debFile))) {
+                    debFile.delete();
+                    throw new IOException("Checksum mismatch for package " + info.packageName);
                 }
-                downloadedDebs.add(debFile);
+            } catch (java.security.GeneralSecurityException e) {
+                throw new IOException("TLS error downloading package " + info.packageName, e);
             }
+            downloadedDebs.add(debFile);
+        }
 
-            statusListener.onStatusUpdate("Unpacking files...");
-            for (File deb : downloadedDebs) unpackDeb(deb, UnpackMode.FILES_ONLY);
+        statusListener.onStatusUpdate("Unpacking files...");
+        // Libraries from an earlier installation are replaced by freshly extracted ones.
+        FileUtils.deleteRecursive(new File(fileUtils.filesDir(), FileUtils.FLAT_LIBRARY_PATH));
+        for (File deb : downloadedDebs) {
+            try (SetupMetrics.Phase phase = metrics.begin("unpack", deb.getName())) {
+                phase.addBytesIn(deb.length());
+                phase.addBytesOut(unpackDeb(deb, UnpackMode.FILES_ONLY));
+            }
+        }
 
-            statusListener.onStatusUpdate("Creating symbolic links...");
+        statusListener.onStatusUpdate("Creating symbolic links...");
+        try (SetupMetrics.Phase phase = metrics.begin("symlinks")) {
             for (File deb : downloadedDebs) unpackDeb(deb, UnpackMode.SYMLINKS_ONLY);
+        }
 
-            String finalMessage = "Package setup complete!";
-            if (warnings.length() > 0) {
-                finalMessage += "\n\nWarnings:\n" + warnings.toString();
+        if (runtimeExecutables != null) {
+            statusListener.onStatusUpdate("Removing files QEMU does not use...");
+            RuntimeClosure closure = new RuntimeClosure(fileUtils.filesDir(), Collections.singletonList(FileUtils.LIBRARY_PATH));
+            try (SetupMetrics.Phase phase = metrics.begin("prune")) {
+                Set<String> keep = closure.compute(runtimeExecutables, runtimeDataPaths);
+                long freed = closure.prune(installedPaths, keep);
+                phase.addBytesOut(freed);
+                Log.i(TAG, "Kept " + keep.size() + " of " + installedPaths.size() + " installed paths, freed " + freed + " bytes");
             }
-            statusListener.onFinalMessage(finalMessage);
 
-        } catch (Exception e) {
-            statusListener.onError("Error during package setup", e);
+            statusListener.onStatusUpdate("Preparing library directory...");
+            long searchNanos = measureStartup(FileUtils.LIBRARY_PATH);
+            try (SetupMetrics.Phase phase = metrics.begin("flatten")) {
+                Log.i(TAG, "Flattened " + closure.flatten(FileUtils.FLAT_LIBRARY_PATH) + " libraries");
+            }
+            long flatNanos = measureStartup(FileUtils.FLAT_LIBRARY_PATH);
+            if (searchNanos < 0 || flatNanos < 0) {
+                Log.i(TAG, "QEMU startup time unavailable");
+            } else {
+                Log.i(TAG, String.format(Locale.US, "QEMU startup: %.1f ms with library search, %.1f ms with flat library directory",
+                        searchNanos / 1e6, flatNanos / 1e6));
+            }
         }
-    }
 
-
-    private void verifyDependencies(Map<String, PackageInfo> selectedPackages, StringBuilder warnings) {
-        for (PackageInfo pkg : selectedPackages.values()) {
-            Collection<Dependency> dependencies = parseDepends(pkg.depends);
-            for (Dependency dep : dependencies) {
-                boolean satisfied = false;
-                if (selectedPackages.containsKey(dep.packageName)) {
-                    if (dep.isVersionSatisfied(selectedPackages.get(dep.packageName).version)) {
-                        satisfied = true;
-                    }
-                }
-                if (!satisfied) {
-                    // Check if any other selected package provides this dependency
-                    for (PackageInfo p : selectedPackages.values()) {
-                        if (p.provides != null && p.provides.contains(dep.packageName)) {
-                            // TODO: Add version check for provides if necessary
-                            satisfied = true;
-                            break;
-                        }
-                    }
-                }
-
-                for (Dependency alternative : dep.alternatives) {
-                    if (selectedPackages.containsKey(alternative.packageName)) {
-                        if (alternative.isVersionSatisfied(selectedPackages.get(alternative.packageName).version)) {
-                            satisfied = true;
-                            break;
-                        }
-                    }
-                }
-                if (!satisfied) {
-                    warnings.append("Conflict detected: Package '")
-                            .append(pkg.packageName)
-                            .append("' depends on '")
-                            .append(dep.packageName)
-                            .append(dep.versionConstraint)
-                            .append("', which could not be satisfied by the selected package set.\n");
-                }
-            }
+        String finalMessage = "Package setup complete!";
+        if (warnings.length() > 0) {
+            finalMessage += "\n\nWarnings:\n" + warnings.toString();
         }
+        return finalMessage;
     }
 
 
-    private PackageInfo findBestPackage(Map<String, PackageInfo> packageDb, String packageName, String versionConstraint) {
-        Dependency tempDep = new Dependency(packageName, versionConstraint);
-
-        // First, try to find a direct match for the package name
-        PackageInfo directMatch = packageDb.values().stream()
-                .filter(p -> p.packageName.equals(packageName))
-                .filter(p -> tempDep.isVersionSatisfied(p.version))
-                .findFirst()
-                .orElse(null);
-
-        if (directMatch != null) {
-            return directMatch;
+    /**
+     * Measures how long "qemu-system-aarch64 --version" takes when started through the extracted loader with the
+     * given library directory. This is dominated by loading and relocating the shared libraries.
+     * @return The fastest of a few runs in nanoseconds, or -1 if there is no command runner or QEMU could not be started.
+     */
+    private long measureStartup(String libraryDir) {
+        if (commandRunner == null) return -1;
+        File libraries = new File(fileUtils.filesDir(), libraryDir);
+        File loader = new File(libraries, FileUtils.LOADER_NAME);
+        File qemu = new File(fileUtils.filesDir(), runtimeExecutables.get(0));
+        loader.setExecutable(true, false);
+        String command = loader.getAbsolutePath() + " --library-path " + libraries.getAbsolutePath() + " " +
+                qemu.getAbsolutePath() + " --version 2>&1";
+        long best = -1;
+        for (int i = 0; i < 3; i++) {
+            try {
+                long start = System.nanoTime();
+                Process process = commandRunner.run(command);
+                try (TaskRuntime.Registration registration = TaskRuntime.closeOnCancel(process::destroy)) {
+                    process.getInputStream().transferTo(OutputStream.nullOutputStream());
+                    if (process.waitFor() != 0) return -1;
+                }
+                long elapsed = System.nanoTime() - start;
+                if (best < 0 || elapsed < best) best = elapsed;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            } catch (Exception e) {
+                Log.w(TAG, "Could not start QEMU to measure startup time", e);
+                return -1;
+            }
         }
-
-        // If no direct match, look for a package that "Provides" the requested package
-        return packageDb.values().stream()
-                .filter(p -> p.provides.contains(packageName))
-                .filter(p -> tempDep.isVersionSatisfied(p.version)) // This might need more sophisticated logic for provides
-                .findFirst()
-                .orElse(null);
+        return best;
     }
 
 
@@ -256,7 +278,22 @@ public class PackageManager {
         String version;
         String filename;
         String depends;
+        String preDepends;
+        long size;
+        String sha256;
         List<String> provides = new ArrayList<>();
+        // Versions of versioned Provides ("libfoo (= 1.0)"), by provided name
+        Map<String, String> providedVersions = new HashMap<>();
+
+        /**
+         * Returns the parsed Pre-Depends and Depends of this package.
+         */
+        Collection<Dependency> dependencies() {
+            if (preDepends == null) return parseDepends(depends);
+            List<Dependency> all = new ArrayList<>(parseDepends(preDepends));
+            all.addAll(parseDepends(depends));
+            return all;
+        }
     }
 
 
@@ -456,10 +493,15 @@ public class PackageManager {
     // }
 
 
+    /**
+     * Unpacks the data archive of a .deb into the files directory.
+     * @return The number of file bytes written.
+     */
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private void unpackDeb(File debFile, UnpackMode mode) throws Exception {
+    private long unpackDeb(File debFile, UnpackMode mode) throws Exception {
         // Debian packages have paths relative to the root, e.g. ./usr/bin/qemu
         final String debianPrefix = "./";
+        long bytesWritten = 0;
 
         try (ArArchiveInputStream arInput = new ArArchiveInputStream(new BufferedInputStream(new FileInputStream(debFile)))) {
             org.apache.commons.compress.archivers.ArchiveEntry entry;
@@ -469,11 +511,15 @@ public class PackageManager {
                     try (TarArchiveInputStream tarInput = new TarArchiveInputStream(xzInput)) {
                         TarArchiveEntry tarEntry;
                         while ((tarEntry = tarInput.getNextEntry()) != null) {
+                            TaskRuntime.checkCancelled();
                             String entryPath = tarEntry.getName();
                             if (!entryPath.startsWith(debianPrefix)) continue;
 
                             String relativePath = entryPath.substring(debianPrefix.length());
+                            if (relativePath.endsWith("/")) relativePath = relativePath.substring(0, relativePath.length() - 1);
                             if (relativePath.isEmpty()) continue;
+                            if (runtimeExecutables != null && RuntimeClosure.isNeverNeeded(relativePath + (tarEntry.isDirectory() ? "/" : ""))) continue;
+                            if (mode == UnpackMode.FILES_ONLY) installedPaths.add(relativePath);
 
                             File outputFile = new File(fileUtils.filesDir(), relativePath);
 
@@ -488,14 +534,14 @@ public class PackageManager {
 
                             if (mode == UnpackMode.FILES_ONLY && !isSymlink) {
                                 outputFile.getParentFile().mkdirs();
-                                if (outputFile.exists()) outputFile.delete();
+                                // Does not follow links: a library flattened by an earlier install left a symlink here
+                                // whose target is gone by now.
+                                Files.deleteIfExists(outputFile.toPath());
                                 try (OutputStream out = new FileOutputStream(outputFile)) {
-                                    tarInput.transferTo(out);
+                                    bytesWritten += FileUtils.copy(tarInput, out);
                                 }
                             } else if (mode == UnpackMode.SYMLINKS_ONLY && isSymlink) {
-                                if (outputFile.exists()) {
-                                    FileUtils.deleteRecursive(outputFile);
-                                }
+                                FileUtils.deleteRecursive(outputFile);
                                 outputFile.getParentFile().mkdirs();
                                 try {
                                     Os.symlink(tarEntry.getLinkName(), outputFile.getAbsolutePath());
@@ -505,49 +551,26 @@ public class PackageManager {
                             }
                         }
                     }
-                    return; // We've processed the data.tar.xz, no need to check other entries.
+                    return bytesWritten; // We've processed the data.tar.xz, no need to check other entries.
                 }
             }
         }
+        return bytesWritten;
     }
 
 
-    private Map<String, PackageInfo> parsePackagesFile() throws IOException {
-        Map<String, PackageInfo> db = new HashMap<>();
-        URL url = new URL(DEBIAN_PACKAGES_FILE_URL);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        try {
-            connection.connect();
-            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) throw new IOException("Failed to get Debian Packages file");
-
-            try (InputStream xzStream = new XZInputStream(connection.getInputStream());
-                 BufferedReader reader = new BufferedReader(new InputStreamReader(xzStream))) {
-                String line;
-                PackageInfo currentInfo = null;
-                while ((line = reader.readLine()) != null) {
-                    if (line.startsWith("Package: ")) {
-                        if (currentInfo != null) db.put(currentInfo.packageName, currentInfo);
-                        currentInfo = new PackageInfo();
-                        currentInfo.packageName = line.substring(9);
-                    } else if (currentInfo != null) {
-                        if (line.startsWith("Filename: ")) currentInfo.filename = line.substring(10);
-                        else if (line.startsWith("Version: ")) currentInfo.version = line.substring(9);
-                        else if (line.startsWith("Depends: ")) currentInfo.depends = line.substring(9);
-                        else if (line.startsWith("Provides: ")) {
-                            String providesStr = line.substring(10);
-                            for (String p : providesStr.split(",\\s*")) {
-                                // Provides can have versions, e.g., "virtual-package (>= 1.0)". We strip them for now.
-                                currentInfo.provides.add(p.split("\\s+")[0]);
-                            }
-                        }
-                    }
-                }
-                if (currentInfo != null) db.put(currentInfo.packageName, currentInfo);
-            }
-        } finally {
-            connection.disconnect();
-        }
-        return db;
+    private IndexUpdater newIndexUpdater() {
+        File cacheFile = new File(fileUtils.cacheDir(), PACKAGES_CACHE_FILE);
+        return new IndexUpdater(repositoryUrl + DEBIAN_DIST_PATH, DEBIAN_PACKAGES_INDEX, cacheFile, message -> statusListener.onStatusUpdate(message));
     }
 
+
+    private PackageIndex openPackagesFile(SetupMetrics.Phase phase) throws IOException {
+        IndexUpdater updater = newIndexUpdater();
+        File index = updater.update();
+        indexHash = updater.getIndexHash();
+        phase.addBytesIn(updater.getBytesDownloaded());
+        phase.addBytesOut(index.length());
+        return PackageIndex.open(index);
+    }
 }
@@ -0,0 +1,290 @@
+package com.example.hassosonandroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Streaming parser for Debian Packages indices that works directly on the bytes coming out of the decompressor.
+ *
+ * Lines are never turned into Strings. Field names are matched byte by byte against the fields the resolver needs
+ * (Package, Version, Depends, Pre-Depends, Provides, Filename, Size, SHA256), and only those values are decoded.
+ * All other fields and their continuation lines (e.g. Description, Tag) are skipped without allocating.
+ *
+ * For a {@link PackageIndex}, only Package and Provides are decoded, and the position of each stanza is recorded
+ * so it can be decoded in full later.
+ */
+public class PackagesParser {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int FIELD_NONE = -1;
+    private static final int FIELD_PACKAGE = 0;
+    private static final int FIELD_VERSION = 1;
+    private static final int FIELD_DEPENDS = 2;
+    private static final int FIELD_PRE_DEPENDS = 3;
+    private static final int FIELD_PROVIDES = 4;
+    private static final int FIELD_FILENAME = 5;
+    private static final int FIELD_SIZE = 6;
+    private static final int FIELD_SHA256 = 7;
+
+    private static final byte[][] FIELD_NAMES = {
+            ascii("Package"), ascii("Version"), ascii("Depends"), ascii("Pre-Depends"),
+            ascii("Provides"), ascii("Filename"), ascii("Size"), ascii("SHA256")
+    };
+
+    private byte[] buf;
+    // Offset of buf[0] in the input
+    private long base;
+    // Set when building an index instead of a map
+    private PackageIndex.Builder index;
+    private long stanzaStart;
+    private PackageManager.PackageInfo current;
+    private int currentField = FIELD_NONE;
+    private String currentValue;
+    // Continuation lines of a projected field are collected here; rare in practice.
+    private StringBuilder continuation;
+
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+
+    /**
+     * Parses an uncompressed Packages index.
+     * @return The packages by name.
+     */
+    public static Map<String, PackageManager.PackageInfo> parse(InputStream in) throws IOException {
+        Map<String, PackageManager.PackageInfo> db = new HashMap<>();
+        PackagesParser parser = new PackagesParser();
+        parser.buf = new byte[BUFFER_SIZE];
+        parser.parse(in, db);
+        return db;
+    }
+
+
+    /**
+     * Scans an uncompressed Packages index for a {@link PackageIndex}.
+     */
+    static PackageIndex.Builder index(InputStream in) throws IOException {
+        PackagesParser parser = new PackagesParser();
+        parser.buf = new byte[BUFFER_SIZE];
+        parser.index = new PackageIndex.Builder();
+        parser.parse(in, null);
+        return parser.index;
+    }
+
+
+    /**
+     * Decodes a single stanza.
+     * @return The package, or null if the stanza has no Package field.
+     */
+    static PackageManager.PackageInfo parseStanza(byte[] stanza) {
+        Map<String, PackageManager.PackageInfo> db = new HashMap<>(2);
+        PackagesParser parser = new PackagesParser();
+        parser.buf = stanza;
+        int start = 0;
+        for (int i = 0; i < stanza.length; i++) {
+            if (stanza[i] == '\n') {
+                parser.line(start, i, db);
+                start = i + 1;
+            }
+        }
+        if (start < stanza.length) parser.line(start, stanza.length, db);
+        parser.endStanza(db, stanza.length);
+        return db.isEmpty() ? null : db.values().iterator().next();
+    }
+
+
+    private void parse(InputStream in, Map<String, PackageManager.PackageInfo> db) throws IOException {
+        int start = 0; // Start of the current, unfinished line
+        int end = 0;   // End of valid data in buf
+        int scan = 0;  // Where to continue looking for the next newline
+        boolean eof = false;
+
+        while (true) {
+            int newline = -1;
+            for (int i = scan; i < end; i++) {
+                if (buf[i] == '\n') {
+                    newline = i;
+                    break;
+                }
+            }
+
+            if (newline >= 0) {
+                line(start, newline, db);
+                start = newline + 1;
+                scan = start;
+                continue;
+            }
+
+            if (eof) {
+                if (start < end) line(start, end, db);
+                endStanza(db, base + end);
+                return;
+            }
+
+            // Move the partial line to the front, growing the buffer if a single line does not fit.
+            int remaining = end - start;
+            if (remaining == buf.length) {
+                byte[] bigger = new byte[buf.length * 2];
+                System.arraycopy(buf, start, bigger, 0, remaining);
+                buf = bigger;
+            } else if (start > 0) {
+                System.arraycopy(buf, start, buf, 0, remaining);
+            }
+            base += start;
+            start = 0;
+            end = remaining;
+            scan = remaining;
+
+            int n = in.read(buf, end, buf.length - end);
+            if (n < 0) eof = true;
+            else end += n;
+        }
+    }
+
+
+    private void line(int from, int to, Map<String, PackageManager.PackageInfo> db) {
+        if (to > from && buf[to - 1] == '\r') to--;
+
+        if (from == to) {
+            endStanza(db, base + from);
+            return;
+        }
+
+        byte first = buf[from];
+        if (first == ' ' || first == '\t') {
+            if (currentField != FIELD_NONE) {
+                if (continuation == null) continuation = new StringBuilder();
+                continuation.append(' ').append(decode(skipSpaces(from, to), to));
+            }
+            return;
+        }
+
+        finishField();
+
+        int colon = -1;
+        for (int i = from; i < to; i++) {
+            if (buf[i] == ':') {
+                colon = i;
+                break;
+            }
+        }
+        if (colon < 0) return;
+
+        int field = matchField(from, colon);
+        if (field == FIELD_NONE) return;
+        if (index != null && field != FIELD_PACKAGE && field != FIELD_PROVIDES) return;
+
+        if (field == FIELD_PACKAGE) {
+            endStanza(db, base + from);
+            current = new PackageManager.PackageInfo();
+            stanzaStart = base + from;
+        } else if (current == null) {
+            return;
+        }
+
+        currentField = field;
+        currentValue = decode(skipSpaces(colon + 1, to), to);
+    }
+
+
+    private int matchField(int from, int to) {
+        int length = to - from;
+        for (int f = 0; f < FIELD_NAMES.length; f++) {
+            byte[] name = FIELD_NAMES[f];
+            if (name.length != length) continue;
+            int i = 0;
+            while (i < length && buf[from + i] == name[i]) i++;
+            if (i == length) return f;
+        }
+        return FIELD_NONE;
+    }
+
+
+    private int skipSpaces(int from, int to) {
+        while (from < to && (buf[from] == ' ' || buf[from] == '\t')) from++;
+        return from;
+    }
+
+
+    private String decode(int from, int to) {
+        return new String(buf, from, to - from, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Stores the value of the field that just ended, including any continuation lines.
+     */
+    private void finishField() {
+        if (currentField != FIELD_NONE && current != null) {
+            assign(currentField, continuation == null ? currentValue : currentValue + continuation);
+        }
+        continuation = null;
+        currentValue = null;
+        currentField = FIELD_NONE;
+    }
+
+
+    private void assign(int field, String value) {
+        PackageManager.PackageInfo info = current;
+        switch (field) {
+            case FIELD_PACKAGE: info.packageName = value; break;
+            case FIELD_VERSION: info.version = value; break;
+            case FIELD_DEPENDS: info.depends = value; break;
+            case FIELD_PRE_DEPENDS: info.preDepends = value; break;
+            case FIELD_FILENAME: info.filename = value; break;
+            case FIELD_SHA256: info.sha256 = value; break;
+            case FIELD_SIZE:
+                try {
+                    info.size = Long.parseLong(value.trim());
+                } catch (NumberFormatException e) {
+                    info.size = 0;
+                }
+                break;
+            case FIELD_PROVIDES:
+                // Provides can have versions, e.g., "virtual-package (= 1.0)". Only "=" is allowed there.
+                int i = 0;
+                int n = value.length();
+                while (i < n) {
+                    while (i < n && (value.charAt(i) == ' ' || value.charAt(i) == ',')) i++;
+                    int nameStart = i;
+                    while (i < n && value.charAt(i) != ' ' && value.charAt(i) != ',' && value.charAt(i) != '(') i++;
+                    int end = value.indexOf(',', i);
+                    if (end < 0) end = n;
+                    if (i == nameStart) {
+                        // No name before the relation, e.g. "(= 1)": skip the malformed entry.
+                        i = end;
+                        continue;
+                    }
+                    String name = value.substring(nameStart, i);
+                    info.provides.add(name);
+                    int open = value.indexOf('(', i);
+                    if (open >= 0 && open < end && index == null) {
+                        String relation = value.substring(open + 1, end).replace(")", "").trim();
+                        if (relation.startsWith("=")) info.providedVersions.put(name, relation.substring(1).trim());
+                    }
+                    i = end;
+                }
+                break;
+            default: break;
+        }
+    }
+
+
+    /**
+     * @param end Where the stanza ends in the input.
+     */
+    private void endStanza(Map<String, PackageManager.PackageInfo> db, long end) {
+        finishField();
+        if (current != null && current.packageName != null) {
+            if (index != null) index.add(current.packageName, current.provides, stanzaStart, end);
+            else db.put(current.packageName, current);
+        }
+        current = null;
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.hassosonandroid;
+
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Minimal client for the QEMU Machine Protocol (QMP).
+ * QEMU is started with "-qmp unix:PATH,server=on,wait=off" on a socket in the app's private directory.
+ * QMP has no authentication and "migrate exec:" runs shell commands, so it must never be reachable by other apps,
+ * as it would be on a TCP port.
+ */
+public class QmpClient implements Closeable {
+    private final LocalSocket socket;
+    private final BufferedReader reader;
+    private final Writer writer;
+
+
+    private QmpClient(LocalSocket socket) throws IOException {
+        this.socket = socket;
+        this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        this.writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Connects to the QMP server, reads the greeting and leaves capabilities negotiation mode.
+     */
+    public static QmpClient connect(File socketFile, int timeoutMs) throws IOException {
+        LocalSocket socket = new LocalSocket();
+        try {
+            socket.connect(new LocalSocketAddress(socketFile.getAbsolutePath(), LocalSocketAddress.Namespace.FILESYSTEM));
+            socket.setSoTimeout(timeoutMs);
+            QmpClient client = new QmpClient(socket);
+            JSONObject greeting = client.readMessage();
+            if (!greeting.has("QMP")) throw new IOException("Unexpected QMP greeting: " + greeting);
+            client.execute("qmp_capabilities", null);
+            return client;
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Executes a QMP command and returns its "return" value, or throws if QEMU reported an error.
+     * Asynchronous events that arrive before the reply are skipped.
+     */
+    public Object execute(String command, JSONObject arguments) throws IOException {
+        try {
+            JSONObject request = new JSONObject();
+            request.put("execute", command);
+            if (arguments != null) request.put("arguments", arguments);
+            writer.write(request.toString());
+            writer.write("\n");
+            writer.flush();
+
+            while (true) {
+                JSONObject reply = readMessage();
+                if (reply.has("event")) continue;
+                if (reply.has("error")) {
+                    JSONObject error = reply.getJSONObject("error");
+                    throw new IOException("QMP command '" + command + "' failed: " + error.optString("desc", error.toString()));
+                }
+                return reply.opt("return");
+            }
+        } catch (JSONException e) {
+            throw new IOException("Malformed QMP message", e);
+        }
+    }
+
+
+    private JSONObject readMessage() throws IOException {
+        String line = reader.readLine();
+        if (line == null) throw new IOException("QMP connection closed");
+        try {
+            return new JSONObject(line);
+        } catch (JSONException e) {
+            throw new IOException("Malformed QMP message: " + line, e);
+        }
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
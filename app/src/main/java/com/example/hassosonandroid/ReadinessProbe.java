@@ -0,0 +1,189 @@
+package com.example.hassosonandroid;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ * Measures the time from starting QEMU until Home Assistant answers HTTP on the forwarded port, and keeps
+ * a history of these boot times.
+ *
+ * Only a complete HTTP response counts: QEMU's user networking accepts connections on a forwarded port before
+ * anything in the guest listens on it, so a successful connect does not mean the guest is ready.
+ * The port is polled with exponential backoff.
+ */
+public class ReadinessProbe {
+    private static final String TAG = "HassOSReadiness";
+    public static final String HISTORY_FILE = "boot-history.json";
+    private static final int MAX_HISTORY = 100;
+
+    private static final long INITIAL_DELAY_MS = 250;
+    private static final long MAX_DELAY_MS = 5000;
+    private static final long DEFAULT_TIMEOUT_MS = 30 * 60 * 1000;
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final int READ_TIMEOUT_MS = 10000;
+
+    private final String url;
+    private final File historyFile;
+    private final long timeoutMs;
+    private volatile Thread thread;
+
+
+    public interface Listener {
+        void onReady(long bootMillis, int httpStatus);
+        void onTimeout(long waitedMillis);
+    }
+
+
+    public ReadinessProbe(String url, File historyFile) {
+        this(url, historyFile, DEFAULT_TIMEOUT_MS);
+    }
+
+
+    public ReadinessProbe(String url, File historyFile, long timeoutMs) {
+        this.url = url;
+        this.historyFile = historyFile;
+        this.timeoutMs = timeoutMs;
+    }
+
+
+    public File historyFile() { return historyFile; }
+
+
+    /**
+     * Starts polling in the background.
+     * @param startNanos System.nanoTime() right before QEMU was started.
+     * @param profile Describes how the VM was started (e.g. "resume headless"), stored with the result.
+     */
+    public synchronized void start(long startNanos, String profile, Listener listener) {
+        stop();
+        thread = new Thread(() -> {
+            try {
+                int status = awaitReady(startNanos);
+                long bootMillis = (System.nanoTime() - startNanos) / 1_000_000;
+                if (status < 0) {
+                    record(profile, -1, bootMillis);
+                    listener.onTimeout(bootMillis);
+                } else {
+                    Log.i(TAG, "Home Assistant answered with HTTP " + status + " after " + bootMillis + " ms (" + profile + ")");
+                    record(profile, bootMillis, bootMillis);
+                    listener.onReady(bootMillis, status);
+                }
+            } catch (InterruptedException e) {
+                // Stopped, e.g. because the VM exited
+            }
+        }, "ReadinessProbe");
+        thread.start();
+    }
+
+
+    /**
+     * Stops polling without recording anything.
+     */
+    public synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+
+    /**
+     * Polls the URL until it returns any HTTP response.
+     * @return The HTTP status code, or -1 on timeout.
+     */
+    public int awaitReady(long startNanos) throws InterruptedException {
+        long delay = INITIAL_DELAY_MS;
+        while ((System.nanoTime() - startNanos) / 1_000_000 < timeoutMs) {
+            int status = poll();
+            if (status > 0) return status;
+            Thread.sleep(delay);
+            delay = Math.min(delay * 3 / 2, MAX_DELAY_MS);
+        }
+        return -1;
+    }
+
+
+    private int poll() throws InterruptedException {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setInstanceFollowRedirects(false);
+            return connection.getResponseCode();
+        } catch (IOException e) {
+            if (Thread.currentThread().isInterrupted()) throw new InterruptedException();
+            return -1;
+        } finally {
+            if (connection != null) connection.disconnect();
+        }
+    }
+
+
+    /**
+     * Appends a boot to the history, keeping the most recent {@value #MAX_HISTORY} entries.
+     * @param readyMillis The boot time, or -1 if the guest did not answer in time.
+     */
+    private synchronized void record(String profile, long readyMillis, long waitedMillis) {
+        try {
+            JSONArray history = readHistory(historyFile);
+            JSONObject entry = new JSONObject();
+            entry.put("time", System.currentTimeMillis());
+            entry.put("profile", profile);
+            entry.put("readyMs", readyMillis);
+            entry.put("waitedMs", waitedMillis);
+            history.put(entry);
+            while (history.length() > MAX_HISTORY) history.remove(0);
+            Files.write(historyFile.toPath(), history.toString(2).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Could not write boot history", e);
+        }
+    }
+
+
+    /**
+     * Reads the boot history, oldest first. Returns an empty array if there is none.
+     */
+    public static JSONArray readHistory(File historyFile) {
+        try {
+            return new JSONArray(new String(Files.readAllBytes(historyFile.toPath()), StandardCharsets.UTF_8));
+        } catch (IOException | JSONException e) {
+            return new JSONArray();
+        }
+    }
+
+
+    /**
+     * Returns a short summary of the recent boots with the given profile, e.g. "last 52.1 s, median of 5: 49.8 s".
+     */
+    public static String summary(File historyFile, String profile) {
+        JSONArray history = readHistory(historyFile);
+        List<Long> times = new ArrayList<>();
+        for (int i = 0; i < history.length(); i++) {
+            JSONObject entry = history.optJSONObject(i);
+            if (entry != null && profile.equals(entry.optString("profile")) && entry.optLong("readyMs", -1) >= 0) {
+                times.add(entry.optLong("readyMs"));
+            }
+        }
+        if (times.isEmpty()) return "no boots recorded";
+        long last = times.get(times.size() - 1);
+        Collections.sort(times);
+        long median = times.get(times.size() / 2);
+        return String.format(Locale.US, "last %.1f s, median of %d: %.1f s", last / 1000.0, times.size(), median / 1000.0);
+    }
+}
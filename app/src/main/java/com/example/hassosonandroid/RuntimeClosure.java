@@ -0,0 +1,283 @@
+package com.example.hassosonandroid;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Computes which of the extracted files QEMU can actually use, and removes the rest.
+ *
+ * Starting from the given executables, the DT_NEEDED entries of every ELF object are resolved the way
+ * ld-linux-aarch64.so.1 does with "--library-path" (RPATH, the library path, RUNPATH; $ORIGIN is expanded),
+ * but against the extracted tree instead of the device root. Data directories such as the firmware are kept
+ * as a whole. Symlinks on the way are kept together with their targets.
+ *
+ * Libraries that are only loaded with dlopen() (e.g. QEMU's optional UI and audio modules) are not followed.
+ *
+ * The libraries found through the library path can then be moved into one flat directory, each stored under its
+ * DT_NEEDED name as a regular file. Pointing "--library-path" at that directory lets the loader open every library
+ * with a single lookup instead of a directory search followed by a chain of versioned symlinks. glibc only reads
+ * a cache from /etc/ld.so.cache, so a generated ld.so.cache cannot be used here.
+ */
+public class RuntimeClosure {
+    private static final String TAG = "HassOSRuntimeClosure";
+
+    // Paths that never contain anything needed at runtime. They are skipped during extraction.
+    private static final String[] NEVER_NEEDED_PREFIXES = {
+            "usr/share/doc/", "usr/share/man/", "usr/share/info/", "usr/share/locale/", "usr/share/lintian/",
+            "usr/share/bug/", "usr/share/bash-completion/", "usr/share/zsh/", "usr/share/menu/", "usr/include/"
+    };
+
+    private final Path root;
+    private final List<String> libraryPath;
+    private final Set<String> keep = new HashSet<>();
+    private final Set<Path> visitedObjects = new HashSet<>();
+    private final Set<Path> visitedDirectories = new HashSet<>();
+    // DT_NEEDED name -> resolved file, for libraries found through the library path
+    private final Map<String, Path> searchPathLibraries = new LinkedHashMap<>();
+
+
+    /**
+     * @param root The directory the packages were extracted to.
+     * @param libraryPath The "--library-path" directories, relative to root.
+     */
+    public RuntimeClosure(File root, List<String> libraryPath) {
+        this.root = root.toPath().toAbsolutePath().normalize();
+        this.libraryPath = libraryPath;
+    }
+
+
+    /**
+     * Returns whether an extracted path can be skipped without looking at its contents.
+     */
+    public static boolean isNeverNeeded(String relativePath) {
+        for (String prefix : NEVER_NEEDED_PREFIXES) {
+            if (relativePath.startsWith(prefix)) return true;
+        }
+        return relativePath.endsWith(".a") || relativePath.contains("/pkgconfig/");
+    }
+
+
+    /**
+     * Computes the set of paths, relative to root, that are needed to run the executables and keep the data paths.
+     */
+    public Set<String> compute(Collection<String> executables, Collection<String> dataPaths) throws IOException {
+        Deque<Path> objects = new ArrayDeque<>();
+        for (String executable : executables) {
+            Path target = keepChain(root.resolve(executable));
+            if (target != null) objects.add(target);
+        }
+
+        while (!objects.isEmpty()) {
+            Path object = objects.poll();
+            if (!visitedObjects.add(object)) continue;
+
+            ElfFile elf = ElfFile.read(object.toFile());
+            if (elf == null) continue;
+
+            if (elf.interpreter != null && !elf.interpreter.isEmpty()) {
+                Path interpreter = keepChain(inTree(elf.interpreter));
+                if (interpreter != null) objects.add(interpreter);
+            }
+
+            // RPATH is ignored by the loader when RUNPATH is present.
+            List<String> rpath = elf.runpath.isEmpty() ? expandOrigin(elf.rpath, object) : Collections.emptyList();
+            List<String> runpath = expandOrigin(elf.runpath, object);
+
+            for (String library : elf.needed) {
+                Path found = findLibrary(library, rpath);
+                if (found == null) {
+                    found = findLibrary(library, libraryPath);
+                    if (found != null && !library.contains("/")) {
+                        Path target = keepChain(found);
+                        if (!searchPathLibraries.containsKey(library)) searchPathLibraries.put(library, target);
+                        objects.add(target);
+                        continue;
+                    }
+                }
+                if (found == null) found = findLibrary(library, runpath);
+                if (found == null) {
+                    Log.w(TAG, "Library " + library + " needed by " + root.relativize(object) + " not found");
+                    continue;
+                }
+                objects.add(keepChain(found));
+            }
+        }
+
+        for (String dataPath : dataPaths) keepTree(root.resolve(dataPath));
+        return Collections.unmodifiableSet(keep);
+    }
+
+
+    /**
+     * Deletes all installed files and symlinks that are not in the keep set, then removes directories
+     * that became empty.
+     * @param installed Paths relative to root that were extracted.
+     * @return The number of bytes freed.
+     */
+    public long prune(Collection<String> installed, Set<String> keepSet) {
+        long freed = 0;
+        List<File> directories = new ArrayList<>();
+        for (String relativePath : installed) {
+            if (keepSet.contains(relativePath)) continue;
+            File file = root.resolve(relativePath).toFile();
+            if (Files.isSymbolicLink(file.toPath())) {
+                file.delete();
+            } else if (file.isDirectory()) {
+                directories.add(file);
+            } else if (file.exists()) {
+                freed += file.length();
+                file.delete();
+            }
+        }
+
+        // Deepest first, so parents are empty by the time they are reached. delete() fails on non-empty directories.
+        directories.sort((a, b) -> b.getPath().length() - a.getPath().length());
+        for (File directory : directories) directory.delete();
+        return freed;
+    }
+
+
+    /**
+     * Moves every library found through the library path into flatDir under its DT_NEEDED name and leaves a
+     * symlink at the old location. Must run after {@link #compute} and {@link #prune}.
+     * @param flatDir Directory relative to root; it is recreated.
+     * @return The number of libraries in flatDir.
+     */
+    public int flatten(String flatDir) throws IOException {
+        Path dir = root.resolve(flatDir);
+        FileUtils.deleteRecursive(dir.toFile());
+        Files.createDirectories(dir);
+
+        Map<Path, Path> moved = new HashMap<>();
+        for (Map.Entry<String, Path> entry : searchPathLibraries.entrySet()) {
+            Path dest = dir.resolve(entry.getKey());
+            Path source = entry.getValue();
+            Path previous = moved.get(source);
+            if (previous != null) {
+                // Two names for the same file; give the second name its own copy so both are single lookups.
+                Files.copy(previous, dest);
+            } else {
+                Files.move(source, dest);
+                Files.createSymbolicLink(source, source.getParent().relativize(dest));
+                moved.put(source, dest);
+            }
+        }
+        return searchPathLibraries.size();
+    }
+
+
+    private List<String> expandOrigin(List<String> entries, Path object) {
+        List<String> expanded = new ArrayList<>();
+        String origin = object.getParent().toString();
+        for (String entry : entries) {
+            if (entry.isEmpty()) continue;
+            String dir = entry.replace("${ORIGIN}", origin).replace("$ORIGIN", origin);
+            Path path = dir.startsWith(root.toString()) ? root.resolve(dir) : inTree(dir);
+            expanded.add(root.relativize(path.normalize()).toString());
+        }
+        return expanded;
+    }
+
+
+    private Path findLibrary(String library, List<String> searchPath) throws IOException {
+        if (library.contains("/")) {
+            Path path = inTree(library);
+            return existsInTree(path) ? path : null;
+        }
+        for (String dir : searchPath) {
+            Path candidate = root.resolve(dir).resolve(library);
+            if (existsInTree(candidate)) return candidate;
+        }
+        return null;
+    }
+
+
+    /**
+     * Maps an absolute path on the device to the same path inside the extracted tree.
+     */
+    private Path inTree(String path) {
+        while (path.startsWith("/")) path = path.substring(1);
+        return root.resolve(path).normalize();
+    }
+
+
+    /**
+     * Keeps a path and every symlink on the way to the file it points to.
+     * @return The final target, or null if it does not exist.
+     */
+    private Path keepChain(Path path) throws IOException {
+        List<Path> links = new ArrayList<>();
+        Path target = resolveInTree(path, links);
+        if (target == null) return null;
+        for (Path link : links) keep.add(root.relativize(link).toString());
+        if (!target.equals(root)) keep.add(root.relativize(target).toString());
+        return target;
+    }
+
+
+    /**
+     * Resolves every symlink in the path, including symlinked directories in the middle of it. Absolute link targets
+     * are resolved inside the tree, as the loader would see them on the device.
+     * @param links Receives the symlinks passed on the way.
+     * @return The path without symlinks, or null if it does not exist.
+     */
+    private Path resolveInTree(Path path, List<Path> links) throws IOException {
+        Deque<String> remaining = new ArrayDeque<>();
+        for (Path name : root.relativize(path.normalize())) remaining.add(name.toString());
+        Path current = root;
+        while (!remaining.isEmpty()) {
+            String name = remaining.poll();
+            if (name.isEmpty() || name.equals(".")) continue;
+            if (name.equals("..")) {
+                if (!current.equals(root)) current = current.getParent();
+                continue;
+            }
+            Path next = current.resolve(name);
+            if (!Files.isSymbolicLink(next)) {
+                current = next;
+                continue;
+            }
+            if (links.size() >= 40) throw new IOException("Too many levels of symbolic links: " + path);
+            links.add(next);
+            Path target = Files.readSymbolicLink(next);
+            if (target.isAbsolute()) current = root;
+            List<String> names = new ArrayList<>();
+            for (Path part : target) names.add(part.toString());
+            for (int i = names.size() - 1; i >= 0; i--) remaining.push(names.get(i));
+        }
+        return Files.exists(current, LinkOption.NOFOLLOW_LINKS) ? current : null;
+    }
+
+
+    private boolean existsInTree(Path path) throws IOException {
+        return resolveInTree(path, new ArrayList<>()) != null;
+    }
+
+
+    private void keepTree(Path path) throws IOException {
+        Path target = keepChain(path);
+        if (target == null) return;
+        if (Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS) && visitedDirectories.add(target)) {
+            File[] children = target.toFile().listFiles();
+            if (children == null) return;
+            for (File child : children) keepTree(child.toPath());
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.hassosonandroid;
+
+import android.os.Debug;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * Records wall time, CPU time and bytes in/out for each setup phase and each package,
+ * so a regression can be pinned to a phase after a Debian point release or on another device.
+ *
+ * Usage:
+ * <pre>
+ * try (SetupMetrics.Phase phase = metrics.begin("download", info.packageName)) {
+ *     ...
+ *     phase.addBytesIn(file.length());
+ * }
+ * </pre>
+ * CPU time is measured for the calling thread, so a phase must begin and end on the same thread.
+ */
+public class SetupMetrics {
+    public static final String REPORT_FILE = "setup-metrics.json";
+
+    private final long startedAtMillis = System.currentTimeMillis();
+    private final long startedAtNanos = System.nanoTime();
+    private final List<Record> records = new ArrayList<>();
+
+
+    private static class Record {
+        String phase;
+        String item;
+        long wallNanos;
+        long cpuNanos;
+        long bytesIn;
+        long bytesOut;
+    }
+
+
+    public class Phase implements AutoCloseable {
+        private final String name;
+        private final String item;
+        private final long wallStart = System.nanoTime();
+        private final long cpuStart = Debug.threadCpuTimeNanos();
+        private long bytesIn;
+        private long bytesOut;
+
+        private Phase(String name, String item) {
+            this.name = name;
+            this.item = item;
+        }
+
+        public void addBytesIn(long bytes) { bytesIn += bytes; }
+        public void addBytesOut(long bytes) { bytesOut += bytes; }
+
+        @Override
+        public void close() {
+            Record record = new Record();
+            record.phase = name;
+            record.item = item;
+            record.wallNanos = System.nanoTime() - wallStart;
+            record.cpuNanos = Math.max(0, Debug.threadCpuTimeNanos() - cpuStart);
+            record.bytesIn = bytesIn;
+            record.bytesOut = bytesOut;
+            synchronized (records) {
+                records.add(record);
+            }
+        }
+    }
+
+
+    public Phase begin(String phase) {
+        return new Phase(phase, null);
+    }
+
+    public Phase begin(String phase, String item) {
+        return new Phase(phase, item);
+    }
+
+
+    /**
+     * An InputStream that counts the bytes read through it, e.g. to measure compressed bytes in front of a decompressor.
+     */
+    public static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        public CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public long getCount() { return count; }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+
+    /**
+     * Sums all records per phase, in the order the phases first appeared.
+     */
+    private Map<String, Record> totalsByPhase() {
+        Map<String, Record> totals = new LinkedHashMap<>();
+        synchronized (records) {
+            for (Record r : records) {
+                Record total = totals.get(r.phase);
+                if (total == null) {
+                    total = new Record();
+                    total.phase = r.phase;
+                    totals.put(r.phase, total);
+                }
+                total.wallNanos += r.wallNanos;
+                total.cpuNanos += r.cpuNanos;
+                total.bytesIn += r.bytesIn;
+                total.bytesOut += r.bytesOut;
+            }
+        }
+        return totals;
+    }
+
+
+    private static double mbPerSecond(long bytes, long nanos) {
+        return nanos > 0 ? (bytes / (1024.0 * 1024.0)) / (nanos / 1e9) : 0;
+    }
+
+
+    private static JSONObject toJson(Record r) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("phase", r.phase);
+        if (r.item != null) json.put("item", r.item);
+        json.put("wallMs", r.wallNanos / 1000000);
+        json.put("cpuMs", r.cpuNanos / 1000000);
+        json.put("bytesIn", r.bytesIn);
+        json.put("bytesOut", r.bytesOut);
+        json.put("inMBps", mbPerSecond(r.bytesIn, r.wallNanos));
+        json.put("outMBps", mbPerSecond(r.bytesOut, r.wallNanos));
+        return json;
+    }
+
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("startedAt", startedAtMillis);
+        json.put("totalWallMs", (System.nanoTime() - startedAtNanos) / 1000000);
+
+        JSONArray phases = new JSONArray();
+        for (Record total : totalsByPhase().values()) phases.put(toJson(total));
+        json.put("phases", phases);
+
+        JSONArray items = new JSONArray();
+        synchronized (records) {
+            for (Record r : records) {
+                if (r.item != null) items.put(toJson(r));
+            }
+        }
+        json.put("items", items);
+        return json;
+    }
+
+
+    public void writeReport(File file) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(toJson().toString(2).getBytes(StandardCharsets.UTF_8));
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+
+    /**
+     * Returns a short human-readable table with one line per phase.
+     */
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "Total: %.1f s\n", (System.nanoTime() - startedAtNanos) / 1e9));
+        for (Record r : totalsByPhase().values()) {
+            sb.append(String.format(Locale.US, "%s: %.1f s wall, %.1f s CPU", r.phase, r.wallNanos / 1e9, r.cpuNanos / 1e9));
+            long bytes = Math.max(r.bytesIn, r.bytesOut);
+            if (bytes > 0) {
+                sb.append(String.format(Locale.US, ", %.1f MB, %.1f MB/s", bytes / (1024.0 * 1024.0), mbPerSecond(bytes, r.wallNanos)));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,296 @@
+package com.example.hassosonandroid;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Runs the app's background operations as tasks made of named phases on a bounded thread pool.
+ *
+ * A phase starts as soon as the phases it depends on have completed, so independent phases run in parallel.
+ * If a phase fails, the task is cancelled: phases still running stop as they would on cancel, and the failure is
+ * only reported once the last of them has exited, so nothing keeps writing after the listener was called.
+ *
+ * Cancelling a task interrupts its running phases and closes the streams they registered with
+ * {@link #closeOnCancel}. This also aborts a network read that is blocked in the kernel, which an interrupt
+ * alone would not do. Long loops call {@link #checkCancelled()} between chunks, so CPU work stops as well.
+ */
+public class TaskRuntime {
+    private static final String TAG = "HassOSTaskRuntime";
+    private static final int QUEUE_SIZE = 32;
+    private static final ThreadLocal<Task> CURRENT_TASK = new ThreadLocal<>();
+
+    private final ThreadPoolExecutor executor;
+
+
+    public interface Body {
+        void run(Task task) throws Exception;
+    }
+
+
+    public interface Listener {
+        void onSuccess(Task task);
+        void onFailure(Task task, String phase, Throwable error);
+        void onCancelled(Task task);
+    }
+
+
+    public TaskRuntime(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE),
+                r -> new Thread(r, "Task-" + count.incrementAndGet()));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+
+    public Task newTask(String name) {
+        return new Task(name);
+    }
+
+
+    /**
+     * Throws if the current thread was interrupted or its task was cancelled. Call this between chunks of work.
+     */
+    public static void checkCancelled() throws InterruptedIOException {
+        Task task = CURRENT_TASK.get();
+        if (Thread.currentThread().isInterrupted() || (task != null && task.isCancelled())) {
+            throw new InterruptedIOException("Cancelled");
+        }
+    }
+
+
+    /**
+     * Closes the given stream or connection if the task running on the current thread is cancelled while it is
+     * registered. Outside of a task this does nothing.
+     * @return Unregisters the stream when closed; use it in a try-with-resources block.
+     */
+    public static Registration closeOnCancel(Closeable closeable) throws InterruptedIOException {
+        Task task = CURRENT_TASK.get();
+        if (task == null) return () -> {};
+        return task.register(closeable);
+    }
+
+
+    public interface Registration extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+
+    private static class PhaseSpec {
+        final String name;
+        final Body body;
+        final List<String> dependsOn;
+
+        PhaseSpec(String name, Body body, List<String> dependsOn) {
+            this.name = name;
+            this.body = body;
+            this.dependsOn = dependsOn;
+        }
+    }
+
+
+    public class Task {
+        private final String name;
+        private final Map<String, PhaseSpec> phases = new LinkedHashMap<>();
+        private final Set<String> completed = new HashSet<>();
+        private final Map<String, Future<?>> running = new HashMap<>();
+        private final Set<String> started = new HashSet<>();
+        private final Set<Closeable> closeables = new HashSet<>();
+        private Listener listener;
+        private volatile boolean cancelled;
+        private String failedPhase;
+        private Throwable failure;
+        private boolean finished;
+
+
+        private Task(String name) {
+            this.name = name;
+        }
+
+
+        public String getName() { return name; }
+        public boolean isCancelled() { return cancelled; }
+        public synchronized boolean isFinished() { return finished; }
+
+
+        /**
+         * Adds a phase that starts once all phases in dependsOn have completed.
+         */
+        public Task phase(String phaseName, Body body, String... dependsOn) {
+            if (listener != null) throw new IllegalStateException("Task " + name + " already started");
+            if (phases.containsKey(phaseName)) throw new IllegalArgumentException("Duplicate phase " + phaseName);
+            for (String dependency : dependsOn) {
+                // Dependencies must be declared first, which also rules out cycles.
+                if (!phases.containsKey(dependency)) throw new IllegalArgumentException("Unknown phase " + dependency);
+            }
+            phases.put(phaseName, new PhaseSpec(phaseName, body, Arrays.asList(dependsOn)));
+            return this;
+        }
+
+
+        public Task start(Listener listener) {
+            List<Closeable> toClose;
+            synchronized (this) {
+                if (this.listener != null) throw new IllegalStateException("Task " + name + " already started");
+                this.listener = listener;
+                toClose = schedule();
+            }
+            closeAll(toClose);
+            notifyIfFinished();
+            return this;
+        }
+
+
+        /**
+         * Cancels the task. Running phases are interrupted and their registered streams closed;
+         * phases that have not started yet never run. The listener's onCancelled is called once nothing runs anymore.
+         */
+        public void cancel() {
+            List<Closeable> toClose;
+            synchronized (this) {
+                toClose = stop(null, null);
+            }
+            closeAll(toClose);
+            notifyIfFinished();
+        }
+
+
+        private synchronized Registration register(Closeable closeable) throws InterruptedIOException {
+            if (cancelled) {
+                closeQuietly(closeable);
+                throw new InterruptedIOException("Cancelled");
+            }
+            closeables.add(closeable);
+            return () -> {
+                synchronized (Task.this) {
+                    closeables.remove(closeable);
+                }
+            };
+        }
+
+
+        /**
+         * Submits every phase whose dependencies have completed. Must hold the lock.
+         * @return The streams to close if a phase could not be submitted.
+         */
+        private List<Closeable> schedule() {
+            for (PhaseSpec phase : phases.values()) {
+                if (cancelled) break;
+                if (completed.contains(phase.name) || running.containsKey(phase.name)) continue;
+                if (!completed.containsAll(phase.dependsOn)) continue;
+                try {
+                    running.put(phase.name, executor.submit(() -> runPhase(phase)));
+                } catch (RejectedExecutionException e) {
+                    return stop(phase.name, e);
+                }
+            }
+            return Collections.emptyList();
+        }
+
+
+        private void runPhase(PhaseSpec phase) {
+            synchronized (this) {
+                started.add(phase.name);
+            }
+            CURRENT_TASK.set(this);
+            Throwable error = null;
+            try {
+                if (!cancelled) phase.body.run(this);
+            } catch (Throwable t) {
+                error = t;
+            } finally {
+                CURRENT_TASK.remove();
+                Thread.interrupted(); // Do not leak an interrupt into the next phase on this thread
+            }
+
+            List<Closeable> toClose = Collections.emptyList();
+            synchronized (this) {
+                running.remove(phase.name);
+                if (error != null) {
+                    toClose = stop(phase.name, error);
+                } else if (!cancelled) {
+                    completed.add(phase.name);
+                    toClose = schedule();
+                }
+            }
+            closeAll(toClose);
+            notifyIfFinished();
+        }
+
+
+        /**
+         * Marks the task as cancelled, so the other running phases stop at their next {@link #checkCancelled()},
+         * and interrupts them. Only the first call has an effect. Must hold the lock.
+         * @param failedPhase The phase that failed, or null if the task was cancelled.
+         * @return The registered streams, to be closed once the lock is released.
+         */
+        private List<Closeable> stop(String failedPhase, Throwable error) {
+            if (finished || cancelled) return Collections.emptyList();
+            cancelled = true;
+            if (failedPhase != null) {
+                this.failedPhase = failedPhase;
+                this.failure = error;
+                Log.e(TAG, "Phase " + failedPhase + " of task " + name + " failed", error);
+            } else {
+                Log.i(TAG, "Cancelling task " + name);
+            }
+            for (Future<?> future : running.values()) future.cancel(true);
+            // Phases still waiting in the queue will never run, so they do not count as running anymore.
+            running.keySet().retainAll(started);
+            return new ArrayList<>(closeables);
+        }
+
+
+        /**
+         * Calls the listener, outside of the lock, once all phases have completed or the last running phase of a
+         * failed or cancelled task has exited.
+         */
+        private void notifyIfFinished() {
+            synchronized (this) {
+                if (finished || listener == null || !running.isEmpty()) return;
+                if (!cancelled && completed.size() < phases.size()) return;
+                finished = true;
+            }
+            if (failedPhase != null) {
+                listener.onFailure(this, failedPhase, failure);
+            } else if (cancelled) {
+                listener.onCancelled(this);
+            } else {
+                listener.onSuccess(this);
+            }
+        }
+    }
+
+
+    private static void closeAll(List<Closeable> closeables) {
+        for (Closeable closeable : closeables) closeQuietly(closeable);
+    }
+
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Error closing stream on cancel", e);
+        }
+    }
+}
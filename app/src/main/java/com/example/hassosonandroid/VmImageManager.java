@@ -0,0 +1,342 @@
+package com.example.hassosonandroid;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Manages the Home Assistant OS disk as a read-only base image per release plus a thin qcow2 overlay the VM writes to.
+ *
+ * Decompressed releases are kept in "images/" and never modified. The VM runs on "haos.qcow2", which only stores
+ * the clusters the guest changed. Running setup again keeps the overlay while the release's checksum is unchanged.
+ * Resetting the VM drops the overlay instead of decompressing the release again, and rebasing points the overlay
+ * at another installed release.
+ *
+ * Over time the overlay grows and fragments as the guest rewrites its data. Compacting rewrites it with
+ * "qemu-img convert" while the VM is stopped, which drops clusters that are unused or equal to the base
+ * and lays out the rest sequentially.
+ */
+public class VmImageManager {
+    private static final String TAG = "HassOSImages";
+    public static final String OVERLAY_PATH = "haos.qcow2";
+    private static final String BASE_DIR = "images";
+    public static final String QEMU_IMG_PATH = "usr/bin/qemu-img";
+
+    private static final int QCOW2_MAGIC = 0x514649fb; // "QFI\xfb"
+
+    private final FileUtils fileUtils;
+    private final VmSnapshotManager snapshotManager;
+    private final CommandRunner commandRunner;
+
+
+    /**
+     * Allocation figures of a qcow2 image, as reported by "qemu-img check".
+     */
+    public static class ImageStats {
+        public final long fileSize;
+        public final long allocatedClusters;
+        public final long fragmentedClusters;
+
+        ImageStats(long fileSize, long allocatedClusters, long fragmentedClusters) {
+            this.fileSize = fileSize;
+            this.allocatedClusters = allocatedClusters;
+            this.fragmentedClusters = fragmentedClusters;
+        }
+
+        public double fragmentedPercent() {
+            return allocatedClusters > 0 ? fragmentedClusters * 100.0 / allocatedClusters : 0;
+        }
+    }
+
+
+    public static class CompactionResult {
+        public final ImageStats before;
+        public final ImageStats after;
+        public final long millis;
+
+        CompactionResult(ImageStats before, ImageStats after, long millis) {
+            this.before = before;
+            this.after = after;
+            this.millis = millis;
+        }
+
+        public String summary() {
+            long mb = 1024 * 1024;
+            return String.format(Locale.US, "VM disk compacted in %.0f s: %d MB -> %d MB (%d MB freed), fragmented clusters %.1f%% -> %.1f%%.",
+                    millis / 1000.0, before.fileSize / mb, after.fileSize / mb, (before.fileSize - after.fileSize) / mb,
+                    before.fragmentedPercent(), after.fragmentedPercent());
+        }
+    }
+
+
+    public VmImageManager(FileUtils fileUtils, VmSnapshotManager snapshotManager, CommandRunner commandRunner) {
+        this.fileUtils = fileUtils;
+        this.snapshotManager = snapshotManager;
+        this.commandRunner = commandRunner;
+    }
+
+
+    public File overlay() { return new File(fileUtils.filesDir(), OVERLAY_PATH); }
+    public File baseDir() { return new File(fileUtils.filesDir(), BASE_DIR); }
+    public File qemuImg() { return new File(fileUtils.filesDir(), QEMU_IMG_PATH); }
+
+
+    /**
+     * Returns the installed base images, sorted by name.
+     */
+    public List<File> installedBases() {
+        List<File> bases = new ArrayList<>();
+        File[] files = baseDir().listFiles((dir, name) -> name.endsWith(".qcow2"));
+        if (files != null) {
+            Arrays.sort(files);
+            bases.addAll(Arrays.asList(files));
+        }
+        return bases;
+    }
+
+
+    /**
+     * Returns the base image the overlay is currently backed by, or null if there is no overlay
+     * or it is a standalone image from an older installation.
+     */
+    public File currentBase() {
+        try {
+            String backingFile = readBackingFile(overlay());
+            return backingFile != null ? new File(backingFile) : null;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read overlay header", e);
+            return null;
+        }
+    }
+
+
+    public boolean canReset() {
+        File base = currentBase();
+        return base != null && base.exists() && qemuImg().exists();
+    }
+
+
+    /**
+     * Decompresses a downloaded release into a read-only base image (unless the same release is already installed).
+     * A new overlay on it is only created if there is no usable overlay yet (none, a standalone image, or one whose
+     * base is gone). An existing overlay
+     * is kept with everything the VM changed, even if it is backed by another release; switching releases is left
+     * to {@link #rebase(File)} and emptying the disk to {@link #reset()}. The one exception is an overlay on this
+     * release's base when the release changed, since its clusters no longer fit the new base.
+     */
+    public void installRelease(File imageXz, FileUtils.DownloadProgressListener listener) throws Exception {
+        String name = imageXz.getName();
+        if (name.endsWith(".xz")) name = name.substring(0, name.length() - 3);
+        File base = new File(baseDir(), name);
+        File checksumFile = new File(baseDir(), name + ".sha256");
+        String checksum = FileUtils.sha256(imageXz);
+
+        boolean unchanged = base.exists() && checksum.equals(readChecksum(checksumFile, checksum));
+        if (unchanged) {
+            if (listener != null) listener.onProgressUpdate("Using installed base image " + base.getName());
+        } else {
+            baseDir().mkdirs();
+            File tmp = new File(baseDir(), name + ".tmp");
+            try {
+                FileUtils.decompressXz(imageXz, tmp, listener);
+            } catch (IOException e) {
+                tmp.delete();
+                throw e;
+            }
+            if (!tmp.renameTo(base)) throw new IOException("Could not move base image into place: " + base);
+            base.setWritable(false, false);
+        }
+        Files.write(checksumFile.toPath(), checksum.getBytes(StandardCharsets.UTF_8));
+
+        File current = currentBase();
+        boolean onThisBase = base.getAbsoluteFile().equals(current);
+        if (overlay().exists() && current != null && current.exists() && (unchanged || !onThisBase)) {
+            if (listener != null && onThisBase) {
+                listener.onProgressUpdate("Keeping the VM disk on " + base.getName());
+            } else if (listener != null) {
+                listener.onProgressUpdate("Keeping the VM disk on " + current.getName() + ". " + base.getName() +
+                        " is installed and can be selected with Reset / Switch OS Image.");
+            }
+            return;
+        }
+        if (listener != null) listener.onProgressUpdate("Creating overlay on " + base.getName() + "...");
+        createOverlay(base);
+    }
+
+
+    /**
+     * Returns the SHA-256 of the release a base image was decompressed from.
+     * @param fallback Returned for base images installed before checksums were recorded.
+     */
+    private static String readChecksum(File checksumFile, String fallback) throws IOException {
+        if (!checksumFile.exists()) return fallback;
+        return new String(Files.readAllBytes(checksumFile.toPath()), StandardCharsets.UTF_8).trim();
+    }
+
+
+    /**
+     * Drops all changes the VM made by replacing the overlay with an empty one on the same base.
+     */
+    public void reset() throws Exception {
+        File base = currentBase();
+        if (base == null || !base.exists()) throw new IOException("The VM disk has no base image to reset to.");
+        createOverlay(base);
+    }
+
+
+    /**
+     * Points the overlay at another installed base image while keeping the changes the VM made.
+     * The overlay is not rewritten, so this only makes sense between releases with the same partition layout.
+     */
+    public void rebase(File base) throws Exception {
+        if (!base.exists()) throw new IOException("Base image not found: " + base);
+        if (!overlay().exists()) {
+            createOverlay(base);
+            return;
+        }
+        exec(fileUtils.loaderPrefix() + qemuImg().getAbsolutePath() + " rebase -u -f qcow2 -F qcow2" +
+                " -b " + base.getAbsolutePath() + " " + overlay().getAbsolutePath());
+        snapshotManager.discard();
+    }
+
+
+    public boolean canCompact() {
+        return overlay().exists() && qemuImg().exists();
+    }
+
+
+    /**
+     * Rewrites the overlay into a new file and replaces it. Only clusters that differ from the base image are
+     * written, in guest order, so discarded and unchanged data no longer take space and reads are sequential again.
+     * The contents the guest sees do not change, so a saved VM state stays valid. The VM must not be running.
+     */
+    public CompactionResult compact(FileUtils.DownloadProgressListener listener) throws Exception {
+        File overlay = overlay();
+        if (!overlay.exists()) throw new IOException("There is no VM disk to compact.");
+        File base = currentBase();
+        if (base != null && !base.exists()) throw new IOException("Base image not found: " + base);
+        if (overlay.getParentFile().getUsableSpace() < overlay.length()) {
+            throw new IOException("Not enough free space to compact the VM disk: " + overlay.length() / (1024 * 1024) + " MB needed.");
+        }
+
+        long start = System.nanoTime();
+        if (listener != null) listener.onProgressUpdate("Checking VM disk...");
+        ImageStats before = check(overlay);
+
+        File tmp = new File(overlay.getParentFile(), OVERLAY_PATH + ".compact");
+        if (tmp.exists()) tmp.delete();
+        if (listener != null) listener.onProgressUpdate("Compacting VM disk (" + before.fileSize / (1024 * 1024) + " MB)...");
+        ImageStats after;
+        try {
+            exec(fileUtils.loaderPrefix() + qemuImg().getAbsolutePath() + " convert -f qcow2 -O qcow2" +
+                    (base != null ? " -B " + base.getAbsolutePath() + " -F qcow2" : "") +
+                    " " + overlay.getAbsolutePath() + " " + tmp.getAbsolutePath());
+            after = check(tmp);
+        } catch (Exception e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(overlay)) {
+            tmp.delete();
+            throw new IOException("Could not move compacted disk into place: " + overlay);
+        }
+
+        CompactionResult result = new CompactionResult(before, after, (System.nanoTime() - start) / 1_000_000);
+        Log.i(TAG, result.summary());
+        return result;
+    }
+
+
+    /**
+     * Runs "qemu-img check" on an image. Leaked clusters are accepted, since compacting drops them anyway;
+     * corruptions are not.
+     */
+    private ImageStats check(File image) throws Exception {
+        // Exit code 3: leaked clusters, but no corruption
+        String output = exec(fileUtils.loaderPrefix() + qemuImg().getAbsolutePath() + " check -f qcow2 --output=json " +
+                image.getAbsolutePath(), 3);
+        try {
+            JSONObject json = new JSONObject(output);
+            return new ImageStats(image.length(), json.optLong("allocated-clusters"), json.optLong("fragmented-clusters"));
+        } catch (JSONException e) {
+            throw new IOException("Unexpected output from qemu-img check: " + output, e);
+        }
+    }
+
+
+    private void createOverlay(File base) throws Exception {
+        File overlay = overlay();
+        File tmp = new File(overlay.getParentFile(), OVERLAY_PATH + ".tmp");
+        if (tmp.exists()) tmp.delete();
+        exec(fileUtils.loaderPrefix() + qemuImg().getAbsolutePath() + " create -f qcow2 -F qcow2" +
+                " -b " + base.getAbsolutePath() + " " + tmp.getAbsolutePath());
+        if (overlay.exists()) overlay.delete();
+        if (!tmp.renameTo(overlay)) throw new IOException("Could not move overlay into place: " + overlay);
+        snapshotManager.discard();
+    }
+
+
+    /**
+     * Runs a qemu-img command.
+     * @param acceptedExitCodes Exit codes other than 0 that do not count as failure.
+     * @return What the command wrote to stdout.
+     */
+    private String exec(String command, int... acceptedExitCodes) throws Exception {
+        Process process = commandRunner.run(command);
+        StringBuilder output = new StringBuilder();
+        StringBuilder errorOutput = new StringBuilder();
+        int exitValue;
+        try (TaskRuntime.Registration registration = TaskRuntime.closeOnCancel(process::destroy);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+             BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
+            // qemu-img writes little to either stream, so reading them one after the other cannot fill a pipe.
+            String line;
+            while ((line = reader.readLine()) != null) output.append(line).append("\n");
+            while ((line = errorReader.readLine()) != null) errorOutput.append(line).append("\n");
+            exitValue = process.waitFor();
+        } catch (InterruptedException e) {
+            process.destroy();
+            throw e;
+        }
+        TaskRuntime.checkCancelled();
+        if (exitValue != 0 && Arrays.stream(acceptedExitCodes).noneMatch(code -> code == exitValue)) {
+            throw new IOException("qemu-img exited with error code " + exitValue + ": " + errorOutput + output);
+        }
+        return output.toString();
+    }
+
+
+    /**
+     * Reads the backing file name from a qcow2 header.
+     * @return The backing file, or null if the image does not exist or has no backing file.
+     */
+    static String readBackingFile(File image) throws IOException {
+        if (!image.exists()) return null;
+        try (RandomAccessFile raf = new RandomAccessFile(image, "r")) {
+            if (raf.length() < 20 || raf.readInt() != QCOW2_MAGIC) return null;
+            raf.readInt(); // version
+            long backingFileOffset = raf.readLong();
+            int backingFileSize = raf.readInt();
+            if (backingFileOffset == 0 || backingFileSize <= 0 || backingFileSize > 1023) return null;
+
+            byte[] name = new byte[backingFileSize];
+            raf.seek(backingFileOffset);
+            raf.readFully(name);
+            return new String(name, StandardCharsets.UTF_8);
+        }
+    }
+}
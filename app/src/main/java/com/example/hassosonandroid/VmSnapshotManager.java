@@ -0,0 +1,211 @@
+package com.example.hassosonandroid;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+
+/**
+ * Saves the complete machine state of a running VM to a file on stop and restores it on the next start,
+ * so the VM does not have to cold-boot through UEFI, the kernel and the supervisor again.
+ *
+ * The state is written with a QMP "migrate" to an exec: URI and loaded again with "-incoming".
+ * A saved state is only used if the QEMU binary, the firmware and the machine configuration are unchanged,
+ * otherwise the VM falls back to a cold boot.
+ */
+public class VmSnapshotManager {
+    private static final String TAG = "HassOSSnapshot";
+    private static final String STATE_FILE = "vmstate.bin";
+    private static final String LOADING_FILE = "vmstate.loading";
+    private static final String META_FILE = "vmstate.properties";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final long MIGRATION_TIMEOUT_MS = 5 * 60 * 1000;
+    private static final long CANCEL_TIMEOUT_MS = 10 * 1000;
+
+    private final FileUtils fileUtils;
+
+
+    public VmSnapshotManager(FileUtils fileUtils) {
+        this.fileUtils = fileUtils;
+    }
+
+
+    private File stateFile() { return new File(fileUtils.filesDir(), STATE_FILE); }
+    private File loadingFile() { return new File(fileUtils.filesDir(), LOADING_FILE); }
+    private File metaFile() { return new File(fileUtils.filesDir(), META_FILE); }
+
+
+    /**
+     * Builds the fingerprint a saved state is bound to. Files are identified by their content, since reinstalling
+     * (e.g. from the install snapshot) gives them new modification times without changing them.
+     * @param machineArgs The QEMU arguments that define the virtual hardware.
+     * @param files The QEMU binary and firmware files.
+     */
+    public static String fingerprint(String machineArgs, File... files) throws IOException {
+        StringBuilder sb = new StringBuilder(machineArgs);
+        for (File file : files) {
+            sb.append('|').append(file.getName()).append(':').append(FileUtils.sha256(file));
+        }
+        return sb.toString();
+    }
+
+
+    public boolean hasSavedState() {
+        return stateFile().exists() && metaFile().exists();
+    }
+
+
+    /**
+     * Checks whether the saved state can be restored with the given fingerprint.
+     * If so, the state is moved aside so it can never be loaded twice (the disk diverges from it as soon as the VM runs).
+     * If not, the stale state is discarded.
+     * @return True if QEMU should be started with {@link #incomingArgument()}.
+     */
+    public boolean prepareResume(String fingerprint) {
+        File loading = loadingFile();
+        if (loading.exists()) loading.delete();
+        if (!hasSavedState()) {
+            discard();
+            return false;
+        }
+
+        Properties meta = new Properties();
+        try (InputStream in = new FileInputStream(metaFile())) {
+            meta.load(in);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read snapshot metadata", e);
+        }
+
+        if (!fingerprint.equals(meta.getProperty(KEY_FINGERPRINT))) {
+            Log.i(TAG, "QEMU, firmware or machine configuration changed. Discarding saved VM state.");
+            discard();
+            return false;
+        }
+
+        boolean moved = stateFile().renameTo(loading);
+        metaFile().delete();
+        return moved;
+    }
+
+
+    public String incomingArgument() {
+        return " -incoming 'exec:cat " + loadingFile().getAbsolutePath() + "'";
+    }
+
+
+    /**
+     * Waits until QEMU has loaded the state handed over with {@link #incomingArgument()} and lets the VM run.
+     * The state is saved from a paused VM, so QEMU stays paused after loading it until it gets a "cont".
+     * @return True if the VM is running.
+     */
+    public boolean resume(QmpClient qmp) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + MIGRATION_TIMEOUT_MS;
+        String status = queryStatus(qmp);
+        while (status.equals("inmigrate") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(200);
+            status = queryStatus(qmp);
+        }
+        if (status.equals("paused")) {
+            qmp.execute("cont", null);
+            status = queryStatus(qmp);
+        }
+        if (!status.equals("running")) Log.w(TAG, "VM did not resume from saved state (status: " + status + ")");
+        return status.equals("running");
+    }
+
+
+    /**
+     * Polls the outgoing migration until it has finished or the timeout has passed.
+     * @return The last migration status.
+     */
+    private static String awaitMigration(QmpClient qmp, long timeoutMs) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        String status;
+        do {
+            Thread.sleep(200);
+            Object info = qmp.execute("query-migrate", null);
+            status = info instanceof JSONObject ? ((JSONObject) info).optString("status") : "";
+        } while (!isMigrationFinished(status) && System.currentTimeMillis() < deadline);
+        return status;
+    }
+
+
+    private static boolean isMigrationFinished(String status) {
+        return status.equals("completed") || status.equals("failed") || status.equals("cancelled");
+    }
+
+
+    private static String queryStatus(QmpClient qmp) throws IOException {
+        Object info = qmp.execute("query-status", null);
+        return info instanceof JSONObject ? ((JSONObject) info).optString("status") : "";
+    }
+
+
+    /**
+     * Removes the state that was handed to QEMU by {@link #prepareResume(String)}.
+     */
+    public void finishResume() {
+        File loading = loadingFile();
+        if (loading.exists()) loading.delete();
+    }
+
+
+    /**
+     * Deletes any saved state. Must be called whenever the disk image is modified while the VM is stopped.
+     */
+    public void discard() {
+        stateFile().delete();
+        metaFile().delete();
+    }
+
+
+    /**
+     * Pauses the VM, writes its state to disk and quits QEMU.
+     * @return True if the state was saved and QEMU was asked to quit.
+     */
+    public boolean save(QmpClient qmp, String fingerprint) throws IOException, InterruptedException {
+        discard();
+        File state = stateFile();
+
+        qmp.execute("stop", null);
+        try {
+            JSONObject args = new JSONObject();
+            args.put("uri", "exec:cat > " + state.getAbsolutePath());
+            qmp.execute("migrate", args);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+
+        String status = awaitMigration(qmp, MIGRATION_TIMEOUT_MS);
+        if (!status.equals("completed")) {
+            Log.w(TAG, "Saving VM state did not complete (status: " + status + ")");
+            if (!isMigrationFinished(status)) {
+                // A migration left running would pause the guest again (postmigrate) once it completes.
+                qmp.execute("migrate_cancel", null);
+                status = awaitMigration(qmp, CANCEL_TIMEOUT_MS);
+                if (!status.equals("cancelled")) Log.w(TAG, "Could not cancel saving VM state (status: " + status + ")");
+            }
+            state.delete();
+            qmp.execute("cont", null);
+            return false;
+        }
+
+        Properties meta = new Properties();
+        meta.setProperty(KEY_FINGERPRINT, fingerprint);
+        try (OutputStream out = new FileOutputStream(metaFile())) {
+            meta.store(out, "Saved VM state");
+        }
+
+        qmp.execute("quit", null);
+        return true;
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.hassosonandroid;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * Measures how much heap each representation of the package index retains, which JMH does not report.
+ *
+ * Each representation is built while the fixture bytes are already allocated, and the heap in use is compared
+ * after forcing full collections before and after. Run with: ./gradlew :benchmark:indexFootprint
+ */
+public final class IndexFootprint {
+    private IndexFootprint() {}
+
+
+    public static void main(String[] args) throws IOException {
+        byte[] raw = PackagesFixture.loadRaw();
+        System.out.printf(Locale.US, "Fixture: %d bytes uncompressed%n", raw.length);
+
+        long before = usedHeap();
+        Map<String, PackageManager.PackageInfo> map = PackagesParser.parse(new ByteArrayInputStream(raw));
+        long mapBytes = usedHeap() - before;
+        report("Map<String, PackageInfo>", mapBytes, map.size());
+        int packages = map.size();
+        map = null;
+
+        before = usedHeap();
+        PackageIndex index = PackageIndex.of(raw);
+        long indexBytes = usedHeap() - before;
+        report("PackageIndex", indexBytes, index.size());
+
+        int selected = new DependencyResolver(index).resolve(PackagesFixture.QEMU_PACKAGES, new StringBuilder()).size();
+        long resolvedBytes = usedHeap() - before;
+        report("PackageIndex after resolving " + selected + " packages", resolvedBytes, index.size());
+
+        System.out.printf(Locale.US, "Reduction: %.1fx (%.1fx after resolving)%n",
+                (double) mapBytes / indexBytes, (double) mapBytes / resolvedBytes);
+        if (index.size() != packages) throw new IllegalStateException("Package count differs: " + index.size() + " vs " + packages);
+    }
+
+
+    private static void report(String what, long bytes, int packages) {
+        System.out.printf(Locale.US, "%-45s %10d bytes  %6.1f bytes/package%n", what, bytes, (double) bytes / packages);
+    }
+
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // Collections are not guaranteed to be complete, so take the lowest of several readings.
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
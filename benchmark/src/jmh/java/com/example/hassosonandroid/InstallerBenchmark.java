@@ -0,0 +1,218 @@
+package com.example.hassosonandroid;
+
+import android.content.Context;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Times the whole setup against a {@link LocalMirror}: package index, resolve, download, unpack and symlinks, with the
+ * OS image looked up and downloaded in parallel and then decompressed, as the app's setup task does.
+ *
+ * Every run starts from an empty app directory. Runs with: ./gradlew :benchmark:installerBenchmark, with optional
+ * -Pruns=, -PbandwidthMbit=, -PlatencyMs=, -Pscale= and -PimageMb= (see the task in build.gradle).
+ * Not covered: pruning and flattening, which need the real QEMU binaries, and creating the qcow2 overlay,
+ * which needs qemu-img.
+ */
+public final class InstallerBenchmark {
+    private static final long SEED = 42;
+    private static final int TASK_THREADS = 4;
+
+    private InstallerBenchmark() {}
+
+
+    public static void main(String[] args) throws Exception {
+        int runs = Integer.getInteger("installer.runs", 5);
+        int warmups = Integer.getInteger("installer.warmups", 1);
+        double bandwidthMbit = Double.parseDouble(System.getProperty("installer.bandwidthMbit", "0"));
+        int latencyMs = Integer.getInteger("installer.latencyMs", 0);
+        double scale = Double.parseDouble(System.getProperty("installer.scale", "0.1"));
+        int imageMb = Integer.getInteger("installer.imageMb", 64);
+        String report = System.getProperty("installer.report");
+
+        long start = System.nanoTime();
+        try (LocalMirror mirror = new LocalMirror(PackagesFixture.loadRaw(), PackagesFixture.QEMU_PACKAGES, scale, imageMb, SEED)) {
+            System.out.printf(Locale.US, "Mirror: %d packages, %.1f MB of .debs, %.1f MB image, generated in %.1f s%n",
+                    mirror.packageCount(), mirror.packageBytes() / (1024.0 * 1024.0), mirror.imageBytes() / (1024.0 * 1024.0),
+                    (System.nanoTime() - start) / 1e9);
+            mirror.start(bandwidthMbit, latencyMs);
+            System.out.printf(Locale.US, "Serving on %s, bandwidth %s, latency %d ms%n", mirror.repositoryUrl(),
+                    bandwidthMbit > 0 ? bandwidthMbit + " Mbit/s" : "unlimited", latencyMs);
+
+            TaskRuntime runtime = new TaskRuntime(TASK_THREADS);
+            List<JSONObject> results = new ArrayList<>();
+            for (int i = -warmups; i < runs; i++) {
+                JSONObject result = runOnce(runtime, mirror);
+                if (i < 0) {
+                    System.out.printf(Locale.US, "Warmup: %.1f s%n", result.getLong("totalWallMs") / 1000.0);
+                    continue;
+                }
+                System.out.printf(Locale.US, "Run %d: %.1f s%n", i + 1, result.getLong("totalWallMs") / 1000.0);
+                results.add(result);
+            }
+
+            JSONObject summary = summarize(results);
+            summary.put("bandwidthMbit", bandwidthMbit);
+            summary.put("latencyMs", latencyMs);
+            summary.put("scale", scale);
+            summary.put("imageMb", imageMb);
+            summary.put("packages", mirror.packageCount());
+            summary.put("packageBytes", mirror.packageBytes());
+            summary.put("imageBytes", mirror.imageBytes());
+            printSummary(summary);
+            if (report != null) {
+                try (OutputStream out = new FileOutputStream(report)) {
+                    out.write(summary.toString(2).getBytes(StandardCharsets.UTF_8));
+                }
+                System.out.println("Report written to " + report);
+            }
+        }
+    }
+
+
+    /**
+     * Runs the setup once in a fresh directory.
+     * @return The run's {@link SetupMetrics#toJson()}.
+     */
+    private static JSONObject runOnce(TaskRuntime runtime, LocalMirror mirror) throws Exception {
+        File root = Files.createTempDirectory("installer-benchmark").toFile();
+        try {
+            FileUtils fileUtils = new FileUtils(new Context(root));
+            SetupMetrics metrics = new SetupMetrics();
+            AtomicReference<File> osImageXz = new AtomicReference<>();
+            PackageManager.StatusListener listener = new PackageManager.StatusListener() {
+                @Override public void onStatusUpdate(String message) {}
+                @Override public void onFinalMessage(String message) {}
+                @Override public void onError(String message, Throwable e) {}
+            };
+
+            TaskRuntime.Task task = runtime.newTask("Setup")
+                .phase("packages", t -> {
+                    PackageManager packageManager = new PackageManager(fileUtils, listener, metrics);
+                    packageManager.setRepositoryUrl(mirror.repositoryUrl());
+                    packageManager.install(PackagesFixture.QEMU_PACKAGES);
+                })
+                .phase("os-image-download", t -> {
+                    String url = new HaosReleases(mirror.releasesUrl()).latestDownloadUrl();
+                    File file = new File(fileUtils.cacheDir(), url.substring(url.lastIndexOf('/') + 1));
+                    try (SetupMetrics.Phase phase = metrics.begin("os-image-download", file.getName())) {
+                        FileUtils.downloadUrlToFile(url, file, false, null);
+                        phase.addBytesIn(file.length());
+                    }
+                    osImageXz.set(file);
+                })
+                .phase("os-image-decompress", t -> {
+                    File file = osImageXz.get();
+                    File image = new File(fileUtils.filesDir(), file.getName().replace(".xz", ""));
+                    try (SetupMetrics.Phase phase = metrics.begin("os-image-decompress", file.getName())) {
+                        FileUtils.decompressXz(file, image, null);
+                        phase.addBytesIn(file.length());
+                        phase.addBytesOut(image.length());
+                    }
+                }, "packages", "os-image-download");
+
+            CountDownLatch done = new CountDownLatch(1);
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            task.start(new TaskRuntime.Listener() {
+                @Override public void onSuccess(TaskRuntime.Task t) { done.countDown(); }
+                @Override public void onFailure(TaskRuntime.Task t, String phase, Throwable error) {
+                    failure.set(new IOException("Phase " + phase + " failed", error));
+                    done.countDown();
+                }
+                @Override public void onCancelled(TaskRuntime.Task t) { done.countDown(); }
+            });
+            done.await();
+            JSONObject result = metrics.toJson();
+            if (failure.get() != null) throw new IllegalStateException(failure.get());
+            return result;
+        } finally {
+            FileUtils.deleteRecursive(root);
+        }
+    }
+
+
+    /**
+     * Takes the median of the total and of every phase's wall time over the runs. Bytes are the same in every run.
+     */
+    private static JSONObject summarize(List<JSONObject> results) throws JSONException {
+        List<Long> totals = new ArrayList<>();
+        Map<String, List<Long>> wallMs = new LinkedHashMap<>();
+        Map<String, long[]> bytes = new LinkedHashMap<>();
+        for (JSONObject result : results) {
+            totals.add(result.getLong("totalWallMs"));
+            JSONArray phases = result.getJSONArray("phases");
+            for (int i = 0; i < phases.length(); i++) {
+                JSONObject phase = phases.getJSONObject(i);
+                String name = phase.getString("phase");
+                wallMs.computeIfAbsent(name, k -> new ArrayList<>()).add(phase.getLong("wallMs"));
+                bytes.put(name, new long[]{phase.getLong("bytesIn"), phase.getLong("bytesOut")});
+            }
+        }
+
+        JSONObject summary = new JSONObject();
+        summary.put("runs", results.size());
+        summary.put("totalWallMs", median(totals));
+        summary.put("totalWallMsMin", Collections.min(totals));
+        summary.put("totalWallMsMax", Collections.max(totals));
+        JSONArray phases = new JSONArray();
+        for (Map.Entry<String, List<Long>> entry : wallMs.entrySet()) {
+            long ms = median(entry.getValue());
+            long[] io = bytes.get(entry.getKey());
+            JSONObject phase = new JSONObject();
+            phase.put("phase", entry.getKey());
+            phase.put("wallMs", ms);
+            phase.put("bytesIn", io[0]);
+            phase.put("bytesOut", io[1]);
+            phase.put("inMBps", mbPerSecond(io[0], ms));
+            phase.put("outMBps", mbPerSecond(io[1], ms));
+            phases.put(phase);
+        }
+        summary.put("phases", phases);
+        return summary;
+    }
+
+
+    private static void printSummary(JSONObject summary) throws JSONException {
+        System.out.printf(Locale.US, "%nMedian of %d runs: %.2f s total (min %.2f s, max %.2f s)%n", summary.getInt("runs"),
+                summary.getLong("totalWallMs") / 1000.0, summary.getLong("totalWallMsMin") / 1000.0,
+                summary.getLong("totalWallMsMax") / 1000.0);
+        System.out.printf(Locale.US, "%-22s %9s %10s %10s %9s %9s%n", "phase", "wall ms", "in MB", "out MB", "in MB/s", "out MB/s");
+        JSONArray phases = summary.getJSONArray("phases");
+        for (int i = 0; i < phases.length(); i++) {
+            JSONObject phase = phases.getJSONObject(i);
+            System.out.printf(Locale.US, "%-22s %9d %10.1f %10.1f %9.1f %9.1f%n", phase.getString("phase"), phase.getLong("wallMs"),
+                    phase.getLong("bytesIn") / (1024.0 * 1024.0), phase.getLong("bytesOut") / (1024.0 * 1024.0),
+                    phase.getDouble("inMBps"), phase.getDouble("outMBps"));
+        }
+    }
+
+
+    private static long median(List<Long> values) {
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        int n = sorted.size();
+        return n % 2 == 1 ? sorted.get(n / 2) : (sorted.get(n / 2 - 1) + sorted.get(n / 2)) / 2;
+    }
+
+
+    private static double mbPerSecond(long bytes, long ms) {
+        return ms > 0 ? (bytes / (1024.0 * 1024.0)) / (ms / 1000.0) : 0;
+    }
+}
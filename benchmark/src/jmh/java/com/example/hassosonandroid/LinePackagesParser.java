@@ -0,0 +1,43 @@
+package com.example.hassosonandroid;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * The original String-per-line index parser, kept as a baseline for {@link PackagesParser}.
+ */
+final class LinePackagesParser {
+    private LinePackagesParser() {}
+
+
+    static Map<String, PackageManager.PackageInfo> parse(InputStream in) throws IOException {
+        Map<String, PackageManager.PackageInfo> db = new HashMap<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        String line;
+        PackageManager.PackageInfo currentInfo = null;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("Package: ")) {
+                if (currentInfo != null) db.put(currentInfo.packageName, currentInfo);
+                currentInfo = new PackageManager.PackageInfo();
+                currentInfo.packageName = line.substring(9);
+            } else if (currentInfo != null) {
+                if (line.startsWith("Filename: ")) currentInfo.filename = line.substring(10);
+                else if (line.startsWith("Version: ")) currentInfo.version = line.substring(9);
+                else if (line.startsWith("Depends: ")) currentInfo.depends = line.substring(9);
+                else if (line.startsWith("Provides: ")) {
+                    String providesStr = line.substring(10);
+                    for (String p : providesStr.split(",\\s*")) {
+                        currentInfo.provides.add(p.split("\\s+")[0]);
+                    }
+                }
+            }
+        }
+        if (currentInfo != null) db.put(currentInfo.packageName, currentInfo);
+        return db;
+    }
+}
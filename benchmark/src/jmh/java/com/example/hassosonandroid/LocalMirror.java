@@ -0,0 +1,339 @@
+package com.example.hassosonandroid;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.compress.archivers.ar.ArArchiveEntry;
+import org.apache.commons.compress.archivers.ar.ArArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * A stand-in for a Debian mirror and the GitHub releases API, served from memory over HTTP on the loopback interface.
+ *
+ * The mirror serves the Packages fixture as dists/stable/main/binary-arm64/Packages.xz with a matching Release
+ * file, a synthetic .deb for every package the QEMU packages resolve to, and a latest-release document whose
+ * generic-aarch64 asset is a synthetic qcow2.xz. The .deb files have the layout the installer unpacks (an ar
+ * archive with debian-binary, control.tar.xz and data.tar.xz) and a payload scaled from the Size the index lists,
+ * so the relative weight of the packages is kept. Their SHA256 is rewritten in the served index; Size is not,
+ * so the resolver makes the same choices as against the fixture.
+ *
+ * Responses can be shaped: every request waits a fixed latency before the headers, and all response bodies
+ * share one link of a fixed bandwidth, as a phone's connection would be shared.
+ */
+public final class LocalMirror implements Closeable {
+    public static final String DIST_PATH = "dists/stable/";
+    public static final String INDEX_PATH = "main/binary-arm64/Packages";
+    public static final String RELEASES_PATH = "repos/home-assistant/operating-system/releases/latest";
+    public static final String HAOS_TAG = "16.0";
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int SMALL_FILE_SIZE = 16 * 1024;
+    private static final int MIN_PAYLOAD = 4 * 1024;
+    private static final int CLUSTER_SIZE = 64 * 1024;
+    private static final Pattern SHA256_LINE = Pattern.compile("^SHA256: [0-9a-f]+$", Pattern.MULTILINE);
+    private static final Pattern PACKAGE_LINE = Pattern.compile("^Package: (\\S+)$", Pattern.MULTILINE);
+    private static final byte[] WORDS = ("GLIBC_2.17 .text .rodata .dynsym .gnu.hash __libc_start_main memcpy malloc free "
+            + "qemu_mutex_lock g_hash_table_lookup object_property_set_bool error_setg ").getBytes(StandardCharsets.US_ASCII);
+
+    private final Map<String, byte[]> files = new HashMap<>();
+    private final long packageBytes;
+    private final int packageCount;
+    private HttpServer server;
+    private ExecutorService executor;
+    private String baseUrl;
+    private int latencyMs;
+    private double bytesPerNano;
+    private long linkFreeAt;
+
+
+    /**
+     * Generates the mirror content.
+     * @param packagesIndex The uncompressed Packages index to serve.
+     * @param roots The packages whose closure gets .deb files.
+     * @param scale The .deb payload size as a fraction of the Size listed in the index.
+     * @param imageMb The virtual size of the qcow2 image in MB.
+     */
+    public LocalMirror(byte[] packagesIndex, List<String> roots, double scale, int imageMb, long seed) throws IOException {
+        Random random = new Random(seed);
+        Map<String, PackageManager.PackageInfo> selected;
+        try (PackageIndex index = PackageIndex.of(packagesIndex)) {
+            selected = new DependencyResolver(index).resolve(roots, new StringBuilder());
+        }
+
+        Map<String, String> hashes = new HashMap<>();
+        long total = 0;
+        for (PackageManager.PackageInfo info : selected.values()) {
+            byte[] deb = buildDeb(info, (int) Math.max(MIN_PAYLOAD, info.size * scale), random);
+            files.put(info.filename, deb);
+            hashes.put(info.packageName, sha256(deb));
+            total += deb.length;
+        }
+        packageBytes = total;
+        packageCount = selected.size();
+
+        byte[] index = rewriteHashes(packagesIndex, hashes);
+        files.put(DIST_PATH + INDEX_PATH + ".xz", xz(index));
+        files.put(DIST_PATH + "Release", release(index));
+
+        String imageName = "haos_generic-aarch64-" + HAOS_TAG + ".qcow2.xz";
+        files.put("releases/download/" + HAOS_TAG + "/" + imageName, xz(buildQcow2(imageMb, random)));
+    }
+
+
+    /**
+     * Starts serving on an ephemeral loopback port.
+     * @param bandwidthMbit The shared link speed in Mbit/s, or 0 for no limit.
+     * @param latencyMs The delay before every response, in milliseconds.
+     */
+    public void start(double bandwidthMbit, int latencyMs) throws IOException {
+        this.latencyMs = latencyMs;
+        this.bytesPerNano = bandwidthMbit > 0 ? bandwidthMbit * 1e6 / 8 / 1e9 : 0;
+        // Otherwise Nagle's algorithm holds back the end of small responses, adding tens of milliseconds per .deb.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        baseUrl = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/";
+
+        String imageName = "haos_generic-aarch64-" + HAOS_TAG + ".qcow2.xz";
+        String release = "{\"tag_name\": \"" + HAOS_TAG + "\", \"assets\": [{\"name\": \"" + imageName + "\", "
+                + "\"browser_download_url\": \"" + baseUrl + "releases/download/" + HAOS_TAG + "/" + imageName + "\"}]}";
+        files.put(RELEASES_PATH, release.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    @Override
+    public void close() {
+        if (server != null) server.stop(0);
+        if (executor != null) executor.shutdownNow();
+    }
+
+
+    /**
+     * The repository root to pass to {@link PackageManager#setRepositoryUrl(String)}.
+     */
+    public String repositoryUrl() { return baseUrl; }
+    public String releasesUrl() { return baseUrl + RELEASES_PATH; }
+    public int packageCount() { return packageCount; }
+    public long packageBytes() { return packageBytes; }
+    public long imageBytes() { return files.get("releases/download/" + HAOS_TAG + "/haos_generic-aarch64-" + HAOS_TAG + ".qcow2.xz").length; }
+
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath().substring(1);
+            byte[] body = files.get(path);
+            if (latencyMs > 0) Thread.sleep(latencyMs);
+            if (body == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (int offset = 0; offset < body.length; offset += CHUNK_SIZE) {
+                    int length = Math.min(CHUNK_SIZE, body.length - offset);
+                    pace(length);
+                    out.write(body, offset, length);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // The client went away, e.g. a cancelled download
+        } finally {
+            exchange.close();
+        }
+    }
+
+
+    /**
+     * Waits until the given number of bytes would have gone over the shared link, after whatever is queued on it.
+     */
+    private void pace(int bytes) throws InterruptedException {
+        if (bytesPerNano <= 0) return;
+        long sentAt;
+        synchronized (this) {
+            sentAt = Math.max(linkFreeAt, System.nanoTime()) + (long) (bytes / bytesPerNano);
+            linkFreeAt = sentAt;
+        }
+        long waitNanos = sentAt - System.nanoTime();
+        if (waitNanos > 0) Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+    }
+
+
+    /**
+     * Builds a .deb holding one large file and a number of small ones, like a library or program package.
+     */
+    private static byte[] buildDeb(PackageManager.PackageInfo info, int payload, Random random) throws IOException {
+        String name = info.packageName;
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new XZOutputStream(data, xzOptions()))) {
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            String libDir = "./usr/lib/aarch64-linux-gnu/";
+            String docDir = "./usr/share/doc/" + name + "/";
+            for (String dir : new String[]{"./", "./usr/", "./usr/lib/", libDir, "./usr/share/", "./usr/share/doc/", docDir}) {
+                tar.putArchiveEntry(new TarArchiveEntry(dir));
+                tar.closeArchiveEntry();
+            }
+            int large = payload * 7 / 10;
+            addFile(tar, libDir + name + ".so.1", content(large, random));
+            TarArchiveEntry link = new TarArchiveEntry(libDir + name + ".so", TarConstants.LF_SYMLINK);
+            link.setLinkName(name + ".so.1");
+            tar.putArchiveEntry(link);
+            tar.closeArchiveEntry();
+            int remaining = payload - large;
+            for (int i = 0; remaining > 0; i++) {
+                int size = Math.min(SMALL_FILE_SIZE, remaining);
+                addFile(tar, docDir + "file" + i, content(size, random));
+                remaining -= size;
+            }
+        }
+
+        ByteArrayOutputStream control = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new XZOutputStream(control, xzOptions()))) {
+            addFile(tar, "./control", ("Package: " + name + "\nVersion: " + info.version + "\nArchitecture: arm64\n")
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+
+        ByteArrayOutputStream deb = new ByteArrayOutputStream();
+        try (ArArchiveOutputStream ar = new ArArchiveOutputStream(deb)) {
+            addMember(ar, "debian-binary", "2.0\n".getBytes(StandardCharsets.US_ASCII));
+            addMember(ar, "control.tar.xz", control.toByteArray());
+            addMember(ar, "data.tar.xz", data.toByteArray());
+        }
+        return deb.toByteArray();
+    }
+
+
+    private static void addFile(TarArchiveOutputStream tar, String path, byte[] content) throws IOException {
+        TarArchiveEntry entry = new TarArchiveEntry(path);
+        entry.setSize(content.length);
+        tar.putArchiveEntry(entry);
+        tar.write(content);
+        tar.closeArchiveEntry();
+    }
+
+
+    private static void addMember(ArArchiveOutputStream ar, String name, byte[] content) throws IOException {
+        ar.putArchiveEntry(new ArArchiveEntry(name, content.length));
+        ar.write(content);
+        ar.closeArchiveEntry();
+    }
+
+
+    /**
+     * Returns bytes that compress roughly like program code: runs of random bytes between recurring symbol names.
+     */
+    private static byte[] content(int size, Random random) {
+        byte[] content = new byte[size];
+        int i = 0;
+        while (i < size) {
+            int run = Math.min(size - i, 32 + random.nextInt(96));
+            if (random.nextBoolean()) {
+                for (int k = 0; k < run; k++) content[i + k] = (byte) random.nextInt(256);
+            } else {
+                int from = random.nextInt(WORDS.length);
+                for (int k = 0; k < run; k++) content[i + k] = WORDS[(from + k) % WORDS.length];
+            }
+            i += run;
+        }
+        return content;
+    }
+
+
+    /**
+     * Builds a qcow2-like image: the qcow2 header followed by clusters that are a quarter data and otherwise zero,
+     * which is about how a freshly built OS image compresses.
+     */
+    private static byte[] buildQcow2(int imageMb, Random random) {
+        byte[] image = new byte[imageMb * 1024 * 1024];
+        byte[] magic = {'Q', 'F', 'I', (byte) 0xfb, 0, 0, 0, 3};
+        System.arraycopy(magic, 0, image, 0, magic.length);
+        for (int offset = CLUSTER_SIZE; offset < image.length; offset += CLUSTER_SIZE) {
+            if (random.nextInt(4) == 0) {
+                byte[] cluster = content(CLUSTER_SIZE, random);
+                System.arraycopy(cluster, 0, image, offset, Math.min(CLUSTER_SIZE, image.length - offset));
+            }
+        }
+        return image;
+    }
+
+
+    private static byte[] rewriteHashes(byte[] packagesIndex, Map<String, String> hashes) {
+        String[] stanzas = new String(packagesIndex, StandardCharsets.UTF_8).split("\n\n", -1);
+        StringBuilder out = new StringBuilder(packagesIndex.length);
+        for (int i = 0; i < stanzas.length; i++) {
+            String stanza = stanzas[i];
+            Matcher name = PACKAGE_LINE.matcher(stanza);
+            String hash = name.find() ? hashes.get(name.group(1)) : null;
+            if (hash != null) stanza = SHA256_LINE.matcher(stanza).replaceFirst("SHA256: " + hash);
+            if (i > 0) out.append("\n\n");
+            out.append(stanza);
+        }
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    private static byte[] release(byte[] index) throws IOException {
+        String release = "Origin: Debian\nLabel: Debian\nSuite: stable\nCodename: local\nArchitectures: arm64\nComponents: main\n"
+                + "SHA256:\n" + String.format(Locale.US, " %s %d %s\n", sha256(index), index.length, INDEX_PATH);
+        return release.getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    private static byte[] xz(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (XZOutputStream xz = new XZOutputStream(out, xzOptions())) {
+            xz.write(data);
+        }
+        return out.toByteArray();
+    }
+
+
+    /**
+     * The fast encoder preset, which keeps generating the mirror short, with the default 8 MB dictionary of
+     * "xz -6", so the installer's decoder allocates what it would for Debian's files.
+     */
+    private static LZMA2Options xzOptions() throws IOException {
+        LZMA2Options options = new LZMA2Options(1);
+        options.setDictSize(LZMA2Options.DICT_SIZE_DEFAULT);
+        return options;
+    }
+
+
+    private static String sha256(byte[] data) throws IOException {
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.hassosonandroid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.tukaani.xz.XZInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Benchmarks for the hot paths of {@link PackagesParser}, {@link PackageIndex}, {@link DependencyResolver} and
+ * {@link PackageManager}.
+ *
+ * Run with: ./gradlew :benchmark:jmh
+ * The gc profiler adds allocation rates (gc.alloc.rate.norm is bytes per operation).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PackageIndexBenchmark {
+    private static final int VERSION_PAIRS = 1024;
+
+    private byte[] xz;
+    private byte[] raw;
+    private Map<String, PackageManager.PackageInfo> db;
+    private PackageIndex index;
+    private String[] dependsFields;
+    private String[] versionsA;
+    private String[] versionsB;
+
+
+    @Setup
+    public void setup() throws IOException {
+        xz = PackagesFixture.loadXz();
+        raw = PackagesFixture.loadRaw();
+        db = PackagesParser.parse(new ByteArrayInputStream(raw));
+        index = PackageIndex.of(raw);
+
+        List<String> depends = new ArrayList<>();
+        List<String> versions = new ArrayList<>();
+        for (PackageManager.PackageInfo info : db.values()) {
+            if (info.depends != null) depends.add(info.depends);
+            versions.add(info.version);
+        }
+        dependsFields = depends.toArray(new String[0]);
+
+        Random random = new Random(1);
+        versionsA = new String[VERSION_PAIRS];
+        versionsB = new String[VERSION_PAIRS];
+        for (int i = 0; i < VERSION_PAIRS; i++) {
+            versionsA[i] = versions.get(random.nextInt(versions.size()));
+            versionsB[i] = versions.get(random.nextInt(versions.size()));
+        }
+    }
+
+
+    /** Parses the uncompressed index. One operation is the whole index. */
+    @Benchmark
+    public Map<String, PackageManager.PackageInfo> parseIndex() throws IOException {
+        return PackagesParser.parse(new ByteArrayInputStream(raw));
+    }
+
+
+    /** Builds the compact index the app resolves against. One operation is the whole index. */
+    @Benchmark
+    public PackageIndex buildCompactIndex() throws IOException {
+        return PackageIndex.of(raw);
+    }
+
+
+    /** Parses the uncompressed index with the original String-per-line parser, as a baseline. */
+    @Benchmark
+    public Map<String, PackageManager.PackageInfo> parseIndexLineBased() throws IOException {
+        return LinePackagesParser.parse(new ByteArrayInputStream(raw));
+    }
+
+
+    /** Decompresses and parses the index, as the app does after the download. */
+    @Benchmark
+    public Map<String, PackageManager.PackageInfo> decompressAndParseIndex() throws IOException {
+        return PackagesParser.parse(new XZInputStream(new ByteArrayInputStream(xz)));
+    }
+
+
+    /** Parses every Depends field of the index. */
+    @Benchmark
+    public void parseDepends(Blackhole blackhole) {
+        for (String depends : dependsFields) blackhole.consume(PackageManager.parseDepends(depends));
+    }
+
+
+    /** Compares {@value #VERSION_PAIRS} pairs of versions taken from the index. */
+    @Benchmark
+    public void compareVersions(Blackhole blackhole) {
+        for (int i = 0; i < VERSION_PAIRS; i++) blackhole.consume(PackageManager.compareVersions(versionsA[i], versionsB[i]));
+    }
+
+
+    /** Resolves the closure of the packages the app installs, with the stanzas it touches already decoded. */
+    @Benchmark
+    public Map<String, PackageManager.PackageInfo> resolveQemu() throws IOException {
+        return new DependencyResolver(index).resolve(PackagesFixture.QEMU_PACKAGES, new StringBuilder());
+    }
+
+
+    /** Builds the compact index and resolves the closure on it, decoding each touched stanza once, as the app does. */
+    @Benchmark
+    public Map<String, PackageManager.PackageInfo> indexAndResolveQemu() throws IOException {
+        return new DependencyResolver(PackageIndex.of(raw)).resolve(PackagesFixture.QEMU_PACKAGES, new StringBuilder());
+    }
+}
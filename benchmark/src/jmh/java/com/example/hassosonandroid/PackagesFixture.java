@@ -0,0 +1,244 @@
+package com.example.hassosonandroid;
+
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZInputStream;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TreeMap;
+
+
+/**
+ * The arm64 Packages.xz fixture the benchmarks run against.
+ *
+ * The checked-in resource is generated by {@link #main(String[])} with a fixed seed. It mirrors the shape of
+ * Debian's stable arm64 main index: the same fields in the same order, multi-line Tag fields, epochs, tildes and
+ * "+debNuM" revisions, versioned dependencies, alternatives and virtual packages provided by several packages.
+ * The QEMU packages the app installs sit on top of a dependency DAG, so resolving them walks a closure of a few
+ * hundred packages. To run against a real index instead, pass -Dpackages.fixture=/path/to/Packages.xz
+ * (or -PpackagesFixture=... to Gradle).
+ */
+public final class PackagesFixture {
+    public static final String RESOURCE = "/Packages.xz";
+    public static final List<String> QEMU_PACKAGES = Arrays.asList("qemu-system-aarch64", "qemu-efi-aarch64", "qemu-utils");
+
+    private static final int PACKAGE_COUNT = 12000;
+    private static final int VIRTUAL_COUNT = 300;
+    private static final String[] PREFIXES = {"lib", "lib", "lib", "python3-", "golang-", "node-", "r-cran-", "librust-", "fonts-", ""};
+    private static final String[] WORDS = {"gtk", "glib", "ssl", "xml", "png", "jpeg", "curl", "pulse", "alsa", "usb",
+            "drm", "gbm", "epoxy", "sdl", "spice", "slirp", "fdt", "aio", "uring", "zstd", "lzo", "snappy", "bz", "nettle",
+            "gnutls", "p11", "tasn", "idn", "unistring", "ffi", "pcre", "selinux", "mount", "blkid", "udev", "systemd",
+            "capng", "seccomp", "numa", "pmem", "rdma", "ibverbs", "vte", "pango", "cairo", "harfbuzz", "freetype", "fontconfig",
+            "pixman", "x11", "xcb", "wayland", "egl", "gl", "vulkan", "jack", "pipewire", "brlapi", "ncurses", "tinfo"};
+    private static final String[] SECTIONS = {"libs", "utils", "devel", "python", "golang", "javascript", "gnu-r", "rust", "fonts", "admin", "misc"};
+    private static final String[] TAGS = {"role::shared-lib", "implemented-in::c", "devel::library", "role::program",
+            "interface::commandline", "scope::utility", "uitoolkit::gtk", "works-with::audio", "hardware::emulation", "admin::virtualization"};
+
+    private PackagesFixture() {}
+
+
+    /**
+     * Returns the compressed fixture.
+     */
+    public static byte[] loadXz() throws IOException {
+        String override = System.getProperty("packages.fixture");
+        try (InputStream in = override != null ? new FileInputStream(override) : PackagesFixture.class.getResourceAsStream(RESOURCE)) {
+            if (in == null) throw new IOException("Fixture not found: " + RESOURCE);
+            return readAll(in);
+        }
+    }
+
+
+    /**
+     * Returns the uncompressed fixture.
+     */
+    public static byte[] loadRaw() throws IOException {
+        try (InputStream in = new XZInputStream(new java.io.ByteArrayInputStream(loadXz()))) {
+            return readAll(in);
+        }
+    }
+
+
+    static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[65536];
+        int n;
+        while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+
+    /**
+     * Regenerates the fixture.
+     * @param args The output file, e.g. benchmark/src/jmh/resources/Packages.xz
+     */
+    public static void main(String[] args) throws IOException {
+        File out = new File(args.length > 0 ? args[0] : "benchmark/src/jmh/resources/Packages.xz");
+        byte[] raw = generate(new Random(20240610L)).getBytes(StandardCharsets.UTF_8);
+        try (OutputStream xz = new XZOutputStream(new FileOutputStream(out), new LZMA2Options(6))) {
+            xz.write(raw);
+        }
+        System.out.println("Wrote " + out + " (" + raw.length + " bytes uncompressed, " + out.length() + " compressed)");
+    }
+
+
+    static String generate(Random random) {
+        // Names first, so dependencies can only point "down" the list and the graph stays acyclic.
+        List<String> names = new ArrayList<>();
+        List<String> versions = new ArrayList<>();
+        names.add("libc6");
+        versions.add("2.36-9+deb12u4");
+        names.add("libgcc-s1");
+        versions.add("12.2.0-14");
+        names.add("zlib1g");
+        versions.add("1:1.2.13.dfsg-1");
+        java.util.Set<String> used = new java.util.HashSet<>(names);
+        while (names.size() < PACKAGE_COUNT) {
+            String prefix = PREFIXES[random.nextInt(PREFIXES.length)];
+            String name = prefix + WORDS[random.nextInt(WORDS.length)] + (random.nextBoolean() ? "" : "-" + WORDS[random.nextInt(WORDS.length)]);
+            if (prefix.equals("lib")) name += random.nextInt(10) + (random.nextInt(4) == 0 ? "t64" : "");
+            if (!used.add(name)) name = name + "-" + names.size();
+            used.add(name);
+            names.add(name);
+            versions.add(randomVersion(random));
+        }
+
+        String[] virtuals = new String[VIRTUAL_COUNT];
+        for (int i = 0; i < VIRTUAL_COUNT; i++) virtuals[i] = WORDS[i % WORDS.length] + "-abi-" + i;
+
+        TreeMap<String, String> stanzas = new TreeMap<>();
+        for (int i = 0; i < names.size(); i++) {
+            StringBuilder depends = new StringBuilder();
+            if (i > 0) {
+                depends.append("libc6 (>= 2.").append(17 + random.nextInt(18)).append(")");
+                int count = Math.min(i - 1, random.nextInt(5));
+                for (int d = 0; d < count; d++) {
+                    depends.append(", ").append(randomDependency(random, names, versions, virtuals, Math.min(i, 4000)));
+                }
+            }
+            stanzas.put(names.get(i), stanza(random, names.get(i), versions.get(i), depends.toString(), virtuals));
+        }
+
+        // The packages the app installs, on top of the graph.
+        String[] qemuDepends = new String[3];
+        for (int q = 0; q < qemuDepends.length; q++) {
+            StringBuilder depends = new StringBuilder("libc6 (>= 2.34)");
+            int count = q == 0 ? 45 : 8;
+            for (int d = 0; d < count; d++) depends.append(", ").append(randomDependency(random, names, versions, virtuals, 3000));
+            qemuDepends[q] = depends.toString();
+        }
+        String qemuVersion = "1:7.2+dfsg-7+deb12u7";
+        stanzas.put("qemu-system-common", stanza(random, "qemu-system-common", qemuVersion, qemuDepends[1], virtuals));
+        stanzas.put("qemu-system-data", stanza(random, "qemu-system-data", qemuVersion, "", virtuals));
+        stanzas.put("qemu-system-aarch64", stanza(random, "qemu-system-aarch64", qemuVersion,
+                qemuDepends[0] + ", qemu-system-common (= " + qemuVersion + "), qemu-system-data (>> 1:7.2+dfsg-7~)", virtuals));
+        stanzas.put("qemu-utils", stanza(random, "qemu-utils", qemuVersion, qemuDepends[2], virtuals));
+        stanzas.put("qemu-efi-aarch64", stanza(random, "qemu-efi-aarch64", "2022.11-6+deb12u2", "", virtuals));
+
+        StringBuilder sb = new StringBuilder();
+        for (String stanza : stanzas.values()) sb.append(stanza).append('\n');
+        return sb.toString();
+    }
+
+
+    private static String randomVersion(Random random) {
+        StringBuilder v = new StringBuilder();
+        if (random.nextInt(12) == 0) v.append(1 + random.nextInt(3)).append(':');
+        v.append(random.nextInt(30)).append('.').append(random.nextInt(20));
+        if (random.nextBoolean()) v.append('.').append(random.nextInt(100));
+        if (random.nextInt(10) == 0) v.append("~rc").append(1 + random.nextInt(4));
+        if (random.nextInt(6) == 0) v.append("+dfsg");
+        v.append('-').append(1 + random.nextInt(9));
+        if (random.nextInt(8) == 0) v.append("+deb12u").append(1 + random.nextInt(5));
+        if (random.nextInt(15) == 0) v.append("+b").append(1 + random.nextInt(3));
+        return v.toString();
+    }
+
+
+    private static String randomDependency(Random random, List<String> names, List<String> versions, String[] virtuals, int bound) {
+        int roll = random.nextInt(10);
+        if (roll == 0) {
+            return virtuals[random.nextInt(virtuals.length)] + " | " + names.get(lowerPackage(random, bound));
+        }
+        int target = lowerPackage(random, bound);
+        String dep = names.get(target);
+        if (roll <= 4) dep += " (>= " + versions.get(target).replaceAll("-[^-]*$", "") + ")";
+        if (roll == 5) dep += " | " + names.get(lowerPackage(random, bound));
+        return dep;
+    }
+
+
+    /**
+     * Picks a dependency target below the bound, skewed towards the start of the list like real-world
+     * dependencies are skewed towards a small set of core libraries.
+     */
+    private static int lowerPackage(Random random, int bound) {
+        double r = random.nextDouble();
+        return (int) (bound * r * r * r);
+    }
+
+
+    private static String stanza(Random random, String name, String version, String depends, String[] virtuals) {
+        StringBuilder sb = new StringBuilder();
+        String source = name.replaceAll("[0-9]+(t64)?$", "");
+        String section = SECTIONS[random.nextInt(SECTIONS.length)];
+        sb.append("Package: ").append(name).append('\n');
+        if (!source.equals(name)) sb.append("Source: ").append(source).append(random.nextInt(5) == 0 ? " (" + version + ")" : "").append('\n');
+        sb.append("Version: ").append(version).append('\n');
+        sb.append("Installed-Size: ").append(8 + random.nextInt(40000)).append('\n');
+        sb.append("Maintainer: Debian ").append(source).append(" Maintainers <").append(source).append("@packages.debian.org>\n");
+        sb.append("Architecture: arm64\n");
+        if (name.startsWith("lib")) sb.append("Multi-Arch: same\n");
+        if (random.nextInt(15) == 0) {
+            sb.append("Provides: ").append(virtuals[random.nextInt(virtuals.length)]);
+            if (random.nextBoolean()) sb.append(", ").append(virtuals[random.nextInt(virtuals.length)]).append(" (= ").append(version).append(")");
+            sb.append('\n');
+        }
+        if (random.nextInt(25) == 0) sb.append("Pre-Depends: libc6 (>= 2.17)\n");
+        if (!depends.isEmpty()) sb.append("Depends: ").append(depends).append('\n');
+        if (random.nextInt(5) == 0) sb.append("Recommends: ").append(source).append("-data\n");
+        if (random.nextInt(8) == 0) sb.append("Suggests: ").append(source).append("-doc\n");
+        if (random.nextInt(20) == 0) sb.append("Breaks: ").append(source).append("-old (<< ").append(version).append(")\n");
+        sb.append("Description: ").append(WORDS[random.nextInt(WORDS.length)]).append(" support library for ").append(source).append('\n');
+        if (random.nextInt(3) > 0) sb.append("Homepage: https://").append(source).append(".example.org/\n");
+        sb.append("Description-md5: ").append(hex(random, 32)).append('\n');
+        if (random.nextBoolean()) {
+            sb.append("Tag: ");
+            int tags = 1 + random.nextInt(6);
+            for (int t = 0; t < tags; t++) {
+                if (t > 0) sb.append(t % 3 == 0 ? ",\n " : ", ");
+                sb.append(TAGS[random.nextInt(TAGS.length)]);
+            }
+            sb.append('\n');
+        }
+        sb.append("Section: ").append(section).append('\n');
+        sb.append("Priority: optional\n");
+        String pool = source.startsWith("lib") ? "lib" + source.charAt(3) : source.substring(0, 1);
+        String fileVersion = version.replaceAll("^[0-9]+:", "");
+        sb.append("Filename: pool/main/").append(pool).append('/').append(source).append('/')
+                .append(name).append('_').append(fileVersion).append("_arm64.deb\n");
+        sb.append("Size: ").append(1000 + random.nextInt(3000000)).append('\n');
+        sb.append("MD5sum: ").append(hex(random, 32)).append('\n');
+        sb.append("SHA256: ").append(hex(random, 64)).append('\n');
+        return sb.toString();
+    }
+
+
+    private static String hex(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) sb.append(Character.forDigit(random.nextInt(16), 16));
+        return sb.toString().toLowerCase(Locale.ROOT);
+    }
+}
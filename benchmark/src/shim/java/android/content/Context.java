@@ -0,0 +1,18 @@
+package android.content;
+
+import java.io.File;
+
+/**
+ * JVM stand-in for android.content.Context that only knows the app's no-backup directory.
+ */
+public class Context {
+    private final File noBackupFilesDir;
+
+    public Context(File noBackupFilesDir) {
+        this.noBackupFilesDir = noBackupFilesDir;
+    }
+
+    public File getNoBackupFilesDir() {
+        return noBackupFilesDir;
+    }
+}
@@ -0,0 +1,28 @@
+package android.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * JVM stand-in for android.net.LocalSocket. Java 11 has no unix domain sockets, so connecting always fails.
+ */
+public class LocalSocket implements Closeable {
+    public void connect(LocalSocketAddress endpoint) throws IOException {
+        throw new IOException("Unix domain sockets are not available in the JVM stand-in: " + endpoint.getName());
+    }
+
+    public void setSoTimeout(int timeoutMs) throws IOException {}
+
+    public InputStream getInputStream() throws IOException {
+        throw new IOException("Not connected");
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("Not connected");
+    }
+
+    @Override
+    public void close() throws IOException {}
+}
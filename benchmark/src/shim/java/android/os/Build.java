@@ -0,0 +1,13 @@
+package android.os;
+
+/**
+ * JVM stand-in for the API level constants used in @RequiresApi annotations.
+ */
+public final class Build {
+    private Build() {}
+
+    public static final class VERSION_CODES {
+        public static final int LOLLIPOP = 21;
+        public static final int O = 26;
+    }
+}
@@ -0,0 +1,10 @@
+package android.system;
+
+/**
+ * JVM stand-in for android.system.ErrnoException.
+ */
+public class ErrnoException extends Exception {
+    public ErrnoException(String functionName, Throwable cause) {
+        super(functionName + " failed: " + cause.getMessage(), cause);
+    }
+}
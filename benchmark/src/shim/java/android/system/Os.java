@@ -0,0 +1,20 @@
+package android.system;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * JVM stand-in for the android.system.Os calls the installer uses, implemented with java.nio.file.
+ */
+public final class Os {
+    private Os() {}
+
+    public static void symlink(String oldPath, String newPath) throws ErrnoException {
+        try {
+            Files.createSymbolicLink(Paths.get(newPath), Paths.get(oldPath));
+        } catch (IOException e) {
+            throw new ErrnoException("symlink", e);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package android.util;
+
+/**
+ * JVM stand-in for android.util.Log that prints to stderr, so the app's plain-Java classes run on a Linux machine.
+ */
+public final class Log {
+    private Log() {}
+
+    private static int print(String level, String tag, String msg, Throwable tr) {
+        System.err.println(level + "/" + tag + ": " + msg);
+        if (tr != null) tr.printStackTrace();
+        return 0;
+    }
+
+    public static int d(String tag, String msg) { return print("D", tag, msg, null); }
+    public static int i(String tag, String msg) { return print("I", tag, msg, null); }
+    public static int w(String tag, String msg) { return print("W", tag, msg, null); }
+    public static int w(String tag, String msg, Throwable tr) { return print("W", tag, msg, tr); }
+    public static int e(String tag, String msg) { return print("E", tag, msg, null); }
+    public static int e(String tag, String msg, Throwable tr) { return print("E", tag, msg, tr); }
+}
@@ -0,0 +1,9 @@
+package androidx.annotation;
+
+/**
+ * JVM stand-in for androidx.annotation.RequiresApi.
+ */
+public @interface RequiresApi {
+    int value() default 1;
+    int api() default 1;
+}
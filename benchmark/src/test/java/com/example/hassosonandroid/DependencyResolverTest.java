@@ -0,0 +1,45 @@
+package com.example.hassosonandroid;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class DependencyResolverTest {
+    @Test
+    public void versionedDependencyIsNotSatisfiedByUnversionedProvider() throws Exception {
+        Map<String, PackageManager.PackageInfo> selected = resolve(
+                "Package: app\nVersion: 1\nPre-Depends: libbar-compat\nDepends: libfoo (>= 2)\n\n"
+                + "Package: libbar-compat\nVersion: 1\nProvides: libfoo\n\n"
+                + "Package: libfoo\nVersion: 2.1\n\n");
+
+        assertTrue(selected.containsKey("libfoo"));
+    }
+
+
+    @Test
+    public void versionedDependencyIsSatisfiedByMatchingVersionedProvider() throws Exception {
+        Map<String, PackageManager.PackageInfo> selected = resolve(
+                "Package: app\nVersion: 1\nPre-Depends: libbar-compat\nDepends: libfoo (>= 2)\n\n"
+                + "Package: libbar-compat\nVersion: 1\nProvides: libfoo (= 2.5)\n\n"
+                + "Package: libfoo\nVersion: 2.1\n\n");
+
+        assertFalse(selected.containsKey("libfoo"));
+    }
+
+
+    private static Map<String, PackageManager.PackageInfo> resolve(String packages) throws Exception {
+        try (PackageIndex index = PackageIndex.of(packages.getBytes(StandardCharsets.UTF_8))) {
+            StringBuilder warnings = new StringBuilder();
+            Map<String, PackageManager.PackageInfo> selected =
+                    new DependencyResolver(index).resolve(Collections.singletonList("app"), warnings);
+            assertTrue(warnings.toString(), warnings.length() == 0);
+            return selected;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.hassosonandroid;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+
+public class IndexUpdaterTest {
+    private static final String INDEX_PATH = "main/binary-arm64/Packages";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final Map<String, byte[]> files = new HashMap<>();
+    private HttpServer server;
+
+
+    @After
+    public void stopServer() {
+        if (server != null) server.stop(0);
+    }
+
+
+    @Test
+    public void appliesEdScript() throws Exception {
+        File source = temp.newFile();
+        Files.write(source.toPath(), bytes("a\nb\nc\nd\ne\n"));
+        File dest = temp.newFile();
+
+        // As "diff --ed" writes it: from the end of the file backwards.
+        String hash = IndexUpdater.applyEdDiff(source, dest, IndexUpdater.parseEdDiff(bytes("5d\n3c\nC\n.\n1a\nx\n.\n")));
+
+        byte[] expected = bytes("a\nx\nb\nC\nd\n");
+        assertArrayEquals(expected, Files.readAllBytes(dest.toPath()));
+        assertEquals(TestRepository.sha256(expected), hash);
+    }
+
+
+    @Test
+    public void updatesCacheThroughChainOfDiffs() throws Exception {
+        byte[] v0 = bytes("a\nb\nc\n");
+        byte[] v1 = bytes("a\nB\nc\n");
+        byte[] v2 = bytes("a\nB\nc\nd\n");
+        byte[] diff1 = bytes("2c\nB\n.\n");
+        byte[] diff2 = bytes("3a\nd\n.\n");
+        serveDiffs(v2, new byte[][] {v0, v1}, new byte[][] {diff1, diff2}, new byte[][] {diff1, diff2});
+        File cache = temp.newFile("Packages");
+        Files.write(cache.toPath(), v0);
+
+        IndexUpdater updater = new IndexUpdater(start(), INDEX_PATH, cache, null);
+        assertEquals(cache, updater.update());
+
+        assertArrayEquals(v2, Files.readAllBytes(cache.toPath()));
+        assertEquals(TestRepository.sha256(v2), updater.getIndexHash());
+        assertNoWorkFiles(cache);
+    }
+
+
+    @Test
+    public void removesWorkFilesWhenDiffFails() throws Exception {
+        byte[] v0 = bytes("a\nb\nc\n");
+        byte[] v1 = bytes("a\nB\nc\n");
+        byte[] v2 = bytes("a\nB\nc\nd\n");
+        byte[] diff1 = bytes("2c\nB\n.\n");
+        byte[] diff2 = bytes("3a\nd\n.\n");
+        // The second pdiff does not match its listed checksum, after the first one was applied.
+        serveDiffs(v2, new byte[][] {v0, v1}, new byte[][] {diff1, diff2}, new byte[][] {diff1, bytes("9d\n")});
+        File cache = temp.newFile("Packages");
+        Files.write(cache.toPath(), v0);
+
+        try {
+            // No Packages.xz is served, so the fallback to a full download fails as well.
+            new IndexUpdater(start(), INDEX_PATH, cache, null).update();
+            fail("Expected the update to fail");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        assertArrayEquals(v0, Files.readAllBytes(cache.toPath()));
+        assertNoWorkFiles(cache);
+    }
+
+
+    /**
+     * Serves a Release file for current and a Packages.diff/Index whose history starts at states[0].
+     * @param listed The pdiffs whose checksums the Index lists.
+     * @param served The pdiffs actually served.
+     */
+    private void serveDiffs(byte[] current, byte[][] states, byte[][] listed, byte[][] served) throws IOException {
+        files.put("Release", bytes("SHA256:\n " + TestRepository.sha256(current) + " " + current.length + " " + INDEX_PATH + "\n"));
+        StringBuilder history = new StringBuilder("SHA256-History:\n");
+        StringBuilder patches = new StringBuilder("SHA256-Patches:\n");
+        for (int i = 0; i < states.length; i++) {
+            String name = "T-" + i;
+            history.append(' ').append(TestRepository.sha256(states[i])).append(' ').append(states[i].length)
+                    .append(' ').append(name).append('\n');
+            patches.append(' ').append(TestRepository.sha256(listed[i])).append(' ').append(listed[i].length)
+                    .append(' ').append(name).append('\n');
+            files.put(INDEX_PATH + ".diff/" + name + ".gz", gzip(served[i]));
+        }
+        files.put(INDEX_PATH + ".diff/Index", bytes("SHA256-Current: " + TestRepository.sha256(current) + " "
+                + current.length + "\n" + history + patches));
+    }
+
+
+    private String start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/";
+    }
+
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = files.get(exchange.getRequestURI().getPath().substring(1));
+            if (body == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+
+    private static void assertNoWorkFiles(File cache) {
+        assertFalse(new File(cache.getParentFile(), cache.getName() + ".patching").exists());
+        assertFalse(new File(cache.getParentFile(), cache.getName() + ".next").exists());
+    }
+
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+            gz.write(data);
+        }
+        return out.toByteArray();
+    }
+
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
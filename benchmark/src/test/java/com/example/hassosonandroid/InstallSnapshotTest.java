@@ -0,0 +1,50 @@
+package com.example.hassosonandroid;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class InstallSnapshotTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+
+    @Test
+    public void restoresContentsModesAndModificationTimes() throws Exception {
+        File root = temp.newFolder();
+        Path binary = root.toPath().resolve("usr/bin/qemu-img");
+        Files.createDirectories(binary.getParent());
+        Files.write(binary, "qemu".getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(binary, PosixFilePermissions.fromString("rwxr-xr-x"));
+        Files.createSymbolicLink(root.toPath().resolve("usr/bin/qemu"), Paths.get("qemu-img"));
+        FileTime fileTime = FileTime.from(1_600_000_000, TimeUnit.SECONDS);
+        FileTime directoryTime = FileTime.from(1_500_000_000, TimeUnit.SECONDS);
+        Files.setLastModifiedTime(binary, fileTime);
+        Files.setLastModifiedTime(binary.getParent(), directoryTime);
+
+        InstallSnapshot snapshot = new InstallSnapshot(root, temp.newFolder());
+        snapshot.export("abc");
+        assertTrue(snapshot.isAvailable());
+        assertEquals("abc", snapshot.indexHash());
+        snapshot.restore(message -> {});
+
+        assertEquals("qemu", new String(Files.readAllBytes(binary), StandardCharsets.UTF_8));
+        assertEquals("rwxr-xr-x", PosixFilePermissions.toString(Files.getPosixFilePermissions(binary)));
+        assertEquals("qemu-img", Files.readSymbolicLink(root.toPath().resolve("usr/bin/qemu")).toString());
+        assertEquals(fileTime, Files.getLastModifiedTime(binary));
+        assertEquals(directoryTime, Files.getLastModifiedTime(binary.getParent()));
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.hassosonandroid;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class MemoryManagerTest {
+    private final MemoryManager manager = new MemoryManager(new File("qmp.sock"), 2048, 8192);
+
+
+    @Test
+    public void shrinksGuestByWhatTheHostIsMissing() {
+        // 12 GB host: low mark 1228 MB. 300 MB available is 928 MB short, which rounds up to two steps.
+        assertEquals(5120, manager.nextTargetMb(host(12288, 300), 6144));
+    }
+
+
+    @Test
+    public void growsGuestWhenHostHasPlentyFree() {
+        // High mark 3072 MB
+        assertEquals(6656, manager.nextTargetMb(host(12288, 4000), 6144));
+    }
+
+
+    @Test
+    public void keepsGuestBetweenMarks() {
+        assertEquals(6144, manager.nextTargetMb(host(12288, 2000), 6144));
+    }
+
+
+    @Test
+    public void clampsToConfiguredRange() {
+        assertEquals(2048, manager.nextTargetMb(host(12288, 0), 2560));
+        assertEquals(8192, manager.nextTargetMb(host(12288, 10000), 8000));
+    }
+
+
+    @Test
+    public void fallsBackToFreeAndCachedWithoutMemAvailable() throws Exception {
+        MemoryManager.MemInfo info = MemoryManager.readMemInfo(new BufferedReader(new StringReader(
+                "MemTotal:       12582912 kB\nMemFree:          524288 kB\nBuffers:           10240 kB\nCached:          1048576 kB\n")));
+
+        assertEquals(12288, info.totalMb);
+        assertEquals(1536, info.availableMb);
+    }
+
+
+    @Test
+    public void leavesGuestAloneWhenHostMemoryIsUnknown() throws Exception {
+        MemoryManager.MemInfo info = MemoryManager.readMemInfo(new BufferedReader(new StringReader(
+                "MemTotal:       12582912 kB\nBuffers:           10240 kB\n")));
+
+        assertEquals(-1, info.availableMb);
+        assertEquals(6144, manager.nextTargetMb(info, 6144));
+    }
+
+
+    private static MemoryManager.MemInfo host(long totalMb, long availableMb) {
+        MemoryManager.MemInfo info = new MemoryManager.MemInfo();
+        info.totalMb = totalMb;
+        info.availableMb = availableMb;
+        return info;
+    }
+}
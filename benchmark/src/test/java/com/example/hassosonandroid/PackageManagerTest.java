@@ -0,0 +1,59 @@
+package com.example.hassosonandroid;
+
+import android.content.Context;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+
+public class PackageManagerTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+
+    @Test
+    public void reinstallsOverFlattenedTree() throws Exception {
+        try (TestRepository repository = new TestRepository()) {
+            repository.add("libfoo1", "1.0", TestRepository.contents(
+                    "./usr/lib/aarch64-linux-gnu/libfoo.so.1", "foo",
+                    "./usr/lib/aarch64-linux-gnu/libfoo.so", "-> libfoo.so.1"));
+            String url = repository.start();
+            FileUtils fileUtils = new FileUtils(new Context(temp.newFolder()));
+            install(fileUtils, url);
+
+            // What RuntimeClosure.flatten leaves behind: the library moved away, a relative symlink in its place.
+            Path library = fileUtils.filesDir().toPath().resolve(FileUtils.LIBRARY_PATH).resolve("libfoo.so.1");
+            Path flat = fileUtils.filesDir().toPath().resolve(FileUtils.FLAT_LIBRARY_PATH).resolve("libfoo.so.1");
+            Files.createDirectories(flat.getParent());
+            Files.move(library, flat);
+            Files.createSymbolicLink(library, library.getParent().relativize(flat));
+
+            install(fileUtils, url);
+
+            assertFalse(Files.isSymbolicLink(library));
+            assertEquals("foo", new String(Files.readAllBytes(library), StandardCharsets.UTF_8));
+            assertEquals("libfoo.so.1", Files.readSymbolicLink(library.resolveSibling("libfoo.so")).toString());
+        }
+    }
+
+
+    private static void install(FileUtils fileUtils, String repositoryUrl) throws Exception {
+        PackageManager packageManager = new PackageManager(fileUtils, new PackageManager.StatusListener() {
+            @Override public void onStatusUpdate(String message) {}
+            @Override public void onFinalMessage(String message) {}
+            @Override public void onError(String message, Throwable e) {}
+        });
+        packageManager.setRepositoryUrl(repositoryUrl);
+        packageManager.install(Collections.singletonList("libfoo1"));
+    }
+}
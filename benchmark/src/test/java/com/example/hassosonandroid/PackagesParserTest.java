@@ -0,0 +1,36 @@
+package com.example.hassosonandroid;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class PackagesParserTest {
+    @Test
+    public void keepsVersionsOfVersionedProvides() {
+        PackageManager.PackageInfo info = parse("Package: libfoo-compat\nVersion: 1\nProvides: libfoo (= 2.5), libbar, libbaz (= 1:3.0-1)\n");
+
+        assertEquals(Arrays.asList("libfoo", "libbar", "libbaz"), info.provides);
+        assertEquals("2.5", info.providedVersions.get("libfoo"));
+        assertNull(info.providedVersions.get("libbar"));
+        assertEquals("1:3.0-1", info.providedVersions.get("libbaz"));
+    }
+
+
+    @Test(timeout = 5000)
+    public void skipsProvidesWithoutName() {
+        assertEquals(Collections.emptyList(), parse("Package: a\nProvides: (= 1)\n").provides);
+        assertEquals(Collections.singletonList("foo"), parse("Package: a\nProvides: foo, (bar)\n").provides);
+        assertEquals(Arrays.asList("foo", "baz"), parse("Package: a\nProvides: foo, (bar), baz (= 2)\n").provides);
+    }
+
+
+    private static PackageManager.PackageInfo parse(String stanza) {
+        return PackagesParser.parseStanza(stanza.getBytes(StandardCharsets.UTF_8));
+    }
+}
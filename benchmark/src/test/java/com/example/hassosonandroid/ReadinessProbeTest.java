@@ -0,0 +1,118 @@
+package com.example.hassosonandroid;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class ReadinessProbeTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+
+    @Test
+    public void returnsStatusOnceServerAnswers() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        // Home Assistant redirects to its onboarding page, which must count as ready.
+        server.createContext("/", exchange -> {
+            exchange.getResponseHeaders().add("Location", "/onboarding.html");
+            exchange.sendResponseHeaders(302, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            ReadinessProbe probe = new ReadinessProbe(urlOf(server.getAddress().getPort()), temp.newFile(), 10000);
+            assertEquals(302, probe.awaitReady(System.nanoTime()));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+
+    @Test
+    public void returnsMinusOneAfterTimeout() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = socket.getLocalPort();
+        }
+        ReadinessProbe probe = new ReadinessProbe(urlOf(port), temp.newFile(), 300);
+
+        long start = System.nanoTime();
+        assertEquals(-1, probe.awaitReady(start));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+    }
+
+
+    @Test
+    public void summarizesRecordedBootsOfProfile() throws Exception {
+        File history = temp.newFile();
+        JSONArray seeded = new JSONArray()
+                .put(boot("cold headless", 40000))
+                .put(boot("resume headless", 5000))
+                .put(boot("cold headless", -1))
+                .put(boot("cold headless", 10000));
+        Files.write(history.toPath(), seeded.toString().getBytes(StandardCharsets.UTF_8));
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            ReadinessProbe probe = new ReadinessProbe(urlOf(server.getAddress().getPort()), history, 10000);
+            CountDownLatch ready = new CountDownLatch(1);
+            AtomicInteger status = new AtomicInteger();
+            probe.start(System.nanoTime(), "cold headless", new ReadinessProbe.Listener() {
+                @Override public void onReady(long bootMillis, int httpStatus) {
+                    status.set(httpStatus);
+                    ready.countDown();
+                }
+                @Override public void onTimeout(long waitedMillis) { ready.countDown(); }
+            });
+            assertTrue(ready.await(10, TimeUnit.SECONDS));
+            assertEquals(200, status.get());
+        } finally {
+            server.stop(0);
+        }
+
+        assertEquals(5, ReadinessProbe.readHistory(history).length());
+        // The new boot took well under 10 s, so the three successful cold boots sort as (new, 10 s, 40 s).
+        String summary = ReadinessProbe.summary(history, "cold headless");
+        assertTrue(summary, summary.endsWith("median of 3: 10.0 s"));
+        assertEquals("last 5.0 s, median of 1: 5.0 s", ReadinessProbe.summary(history, "resume headless"));
+        assertEquals("no boots recorded", ReadinessProbe.summary(history, "cold vnc"));
+    }
+
+
+    private static JSONObject boot(String profile, long readyMs) {
+        JSONObject entry = new JSONObject();
+        entry.put("time", 0);
+        entry.put("profile", profile);
+        entry.put("readyMs", readyMs);
+        entry.put("waitedMs", readyMs < 0 ? 1800000 : readyMs);
+        return entry;
+    }
+
+
+    private static String urlOf(int port) {
+        return "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + port + "/";
+    }
+}
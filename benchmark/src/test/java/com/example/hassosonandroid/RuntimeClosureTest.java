@@ -0,0 +1,42 @@
+package com.example.hassosonandroid;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertTrue;
+
+
+public class RuntimeClosureTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+
+    @Test
+    public void keepsTargetsBehindDirectorySymlinks() throws Exception {
+        Path root = temp.newFolder().toPath();
+        Path real = root.resolve("usr/lib/qemu-real/qemu-system-aarch64");
+        Files.createDirectories(real.getParent());
+        Files.write(real, new byte[] {1});
+        Files.createSymbolicLink(root.resolve("usr/lib/qemu"), Paths.get("qemu-real"));
+        Files.createSymbolicLink(root.resolve("bin"), Paths.get("/usr/lib/qemu"));
+        List<String> installed = Arrays.asList(
+                "usr", "usr/lib", "usr/lib/qemu-real", "usr/lib/qemu-real/qemu-system-aarch64", "usr/lib/qemu", "bin");
+
+        RuntimeClosure closure = new RuntimeClosure(root.toFile(), Collections.emptyList());
+        Set<String> keep = closure.compute(Collections.singletonList("bin/qemu-system-aarch64"), Collections.emptyList());
+        closure.prune(installed, keep);
+
+        assertTrue(Files.isRegularFile(real));
+        assertTrue(Files.isSymbolicLink(root.resolve("usr/lib/qemu")));
+        assertTrue(Files.isSymbolicLink(root.resolve("bin")));
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.hassosonandroid;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class TaskRuntimeTest {
+    @Test
+    public void failureIsReportedAfterSiblingPhasesExit() throws Exception {
+        CountDownLatch siblingRunning = new CountDownLatch(1);
+        AtomicBoolean siblingExited = new AtomicBoolean();
+        AtomicBoolean siblingExitedBeforeReport = new AtomicBoolean();
+        AtomicReference<String> failedPhase = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+
+        new TaskRuntime(2).newTask("test")
+            .phase("download", t -> {
+                siblingRunning.countDown();
+                try {
+                    while (true) {
+                        TaskRuntime.checkCancelled();
+                        try {
+                            Thread.sleep(5);
+                        } catch (InterruptedException e) {
+                            // Keeps going until the next check, like a blocking copy would
+                        }
+                    }
+                } finally {
+                    // Cleanup that takes a while and is not interruptible, e.g. deleting a partial download
+                    long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+                    while (System.nanoTime() < end) Thread.onSpinWait();
+                    siblingExited.set(true);
+                }
+            })
+            .phase("failing", t -> {
+                siblingRunning.await();
+                throw new IOException("broken");
+            })
+            .start(new TaskRuntime.Listener() {
+                @Override public void onSuccess(TaskRuntime.Task task) { done.countDown(); }
+                @Override public void onFailure(TaskRuntime.Task task, String phase, Throwable error) {
+                    siblingExitedBeforeReport.set(siblingExited.get());
+                    failedPhase.set(phase);
+                    done.countDown();
+                }
+                @Override public void onCancelled(TaskRuntime.Task task) { done.countDown(); }
+            });
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals("failing", failedPhase.get());
+        assertTrue(siblingExitedBeforeReport.get());
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.hassosonandroid;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.compress.archivers.ar.ArArchiveEntry;
+import org.apache.commons.compress.archivers.ar.ArArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * A small Debian repository served over HTTP on the loopback interface, for tests that run the installer.
+ */
+final class TestRepository implements Closeable {
+    static final String INDEX_PATH = "main/binary-arm64/Packages";
+
+    private final Map<String, byte[]> files = new HashMap<>();
+    private final StringBuilder packages = new StringBuilder();
+    private HttpServer server;
+
+
+    /**
+     * Returns the contents of a package: paths as in a .deb ("./usr/..."), mapped to the file content,
+     * or to "-> target" for a symlink.
+     */
+    static Map<String, String> contents(String... pathsAndContents) {
+        Map<String, String> contents = new LinkedHashMap<>();
+        for (int i = 0; i < pathsAndContents.length; i += 2) contents.put(pathsAndContents[i], pathsAndContents[i + 1]);
+        return contents;
+    }
+
+
+    /**
+     * Adds a package whose data.tar.xz holds the given contents.
+     */
+    TestRepository add(String name, String version, Map<String, String> contents) throws IOException {
+        byte[] deb = buildDeb(contents);
+        String filename = "pool/main/" + name + "_" + version + "_arm64.deb";
+        files.put(filename, deb);
+        packages.append("Package: ").append(name).append('\n')
+                .append("Version: ").append(version).append('\n')
+                .append("Architecture: arm64\n")
+                .append("Filename: ").append(filename).append('\n')
+                .append("Size: ").append(deb.length).append('\n')
+                .append("SHA256: ").append(sha256(deb)).append("\n\n");
+        return this;
+    }
+
+
+    /**
+     * Starts serving the packages added so far.
+     * @return The repository root to pass to {@link PackageManager#setRepositoryUrl(String)}.
+     */
+    String start() throws IOException {
+        byte[] index = packages.toString().getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream xz = new ByteArrayOutputStream();
+        try (OutputStream out = new XZOutputStream(xz, new LZMA2Options())) {
+            out.write(index);
+        }
+        files.put("dists/stable/" + INDEX_PATH + ".xz", xz.toByteArray());
+        files.put("dists/stable/Release", ("SHA256:\n " + sha256(index) + " " + index.length + " " + INDEX_PATH + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/";
+    }
+
+
+    @Override
+    public void close() {
+        if (server != null) server.stop(0);
+    }
+
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = files.get(exchange.getRequestURI().getPath().substring(1));
+            if (body == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+
+    private static byte[] buildDeb(Map<String, String> contents) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new XZOutputStream(data, new LZMA2Options()))) {
+            for (Map.Entry<String, String> entry : contents.entrySet()) {
+                String value = entry.getValue();
+                if (value.startsWith("-> ")) {
+                    TarArchiveEntry link = new TarArchiveEntry(entry.getKey(), TarConstants.LF_SYMLINK);
+                    link.setLinkName(value.substring(3));
+                    tar.putArchiveEntry(link);
+                } else {
+                    byte[] content = value.getBytes(StandardCharsets.UTF_8);
+                    TarArchiveEntry file = new TarArchiveEntry(entry.getKey());
+                    file.setSize(content.length);
+                    tar.putArchiveEntry(file);
+                    tar.write(content);
+                }
+                tar.closeArchiveEntry();
+            }
+        }
+
+        ByteArrayOutputStream deb = new ByteArrayOutputStream();
+        try (ArArchiveOutputStream ar = new ArArchiveOutputStream(deb)) {
+            byte[] version = "2.0\n".getBytes(StandardCharsets.US_ASCII);
+            ar.putArchiveEntry(new ArArchiveEntry("debian-binary", version.length));
+            ar.write(version);
+            ar.closeArchiveEntry();
+            byte[] tar = data.toByteArray();
+            ar.putArchiveEntry(new ArArchiveEntry("data.tar.xz", tar.length));
+            ar.write(tar);
+            ar.closeArchiveEntry();
+        }
+        return deb.toByteArray();
+    }
+
+
+    static String sha256(byte[] data) throws IOException {
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}